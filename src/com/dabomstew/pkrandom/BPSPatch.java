@@ -0,0 +1,207 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  BPSPatch.java - creates BPS patches from an original ROM image and    --*/
+/*--                  either a randomized image or its parts, in order.     --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// The new ROM is described in order, as copies from the original and as new data. New data can
+// be matched against the part of the original it replaces, so that the runs which did not
+// change are stored as copies and only the rest is stored literally. Adjacent copies are merged
+// into one action. GB games are one piece of new data matched against the whole original, since
+// they are only ever changed in place; DS games are described part by part by their layout, so
+// files that moved are copied from where they were without searching for them.
+public class BPSPatch {
+
+    private static final int SOURCE_READ = 0;
+    private static final int TARGET_READ = 1;
+    private static final int SOURCE_COPY = 2;
+
+    // shorter matches cost more in the patch than storing the bytes literally
+    private static final int MIN_MATCH = 4;
+
+    private final ByteBuffer source;
+    private final long targetSize;
+    private final CRC32 patchCRC = new CRC32();
+    private final CRC32 targetCRC = new CRC32();
+    private final CheckedOutputStream out;
+    private long targetOffset;
+    private long sourceRelativeOffset;
+    private long copyFrom = -1;
+    private long copyLength;
+
+    public BPSPatch(ByteBuffer source, long targetSize, OutputStream out) throws IOException {
+        this.source = source.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.targetSize = targetSize;
+        this.out = new CheckedOutputStream(new BufferedOutputStream(out), patchCRC);
+        this.out.write(new byte[] { 'B', 'P', 'S', '1' });
+        writeNumber(this.source.limit());
+        writeNumber(targetSize);
+        writeNumber(0);
+    }
+
+    /**
+     * Writes a patch that turns source into target, where target is source changed in place.
+     */
+    public static void write(ByteBuffer source, ByteBuffer target, OutputStream out) throws IOException {
+        BPSPatch patch = new BPSPatch(source, target.limit(), out);
+        patch.write(target, 0);
+        patch.finish();
+    }
+
+    public long sourceSize() {
+        return source.limit();
+    }
+
+    /**
+     * Continues the new ROM with length bytes of the original, starting at from.
+     */
+    public void copy(long from, long length) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        if (copyFrom >= 0 && copyFrom + copyLength == from) {
+            copyLength += length;
+        } else {
+            flushCopy();
+            copyFrom = from;
+            copyLength = length;
+        }
+        targetCRC.update(FileFunctions.slice(source, (int) from, (int) length));
+        targetOffset += length;
+    }
+
+    /**
+     * Continues the new ROM with data, which replaces what was at original in the original ROM,
+     * or is new if original is -1.
+     */
+    public void write(ByteBuffer data, long original) throws IOException {
+        data = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int size = data.limit();
+        int pos = 0;
+        int literalStart = 0;
+        while (original >= 0 && pos < size) {
+            int length = matchLength((int) original + pos, data, pos);
+            if (length >= MIN_MATCH || (length > 0 && pos + length == size)) {
+                writeLiteral(data, literalStart, pos);
+                copy(original + pos, length);
+                pos += length;
+                literalStart = pos;
+            } else {
+                pos++;
+            }
+        }
+        writeLiteral(data, literalStart, size);
+    }
+
+    public void finish() throws IOException {
+        flushCopy();
+        if (targetOffset != targetSize) {
+            throw new IOException("Patch describes " + targetOffset + " bytes instead of " + targetSize);
+        }
+        CRC32 sourceCRC = new CRC32();
+        sourceCRC.update(source.duplicate());
+        writeCRC(sourceCRC.getValue());
+        writeCRC(targetCRC.getValue());
+        writeCRC(patchCRC.getValue());
+        out.flush();
+    }
+
+    // Java 8 has no ByteBuffer.mismatch, so this compares 8 bytes at a time and then finds the
+    // byte that differs
+    private int matchLength(int sourceOffset, ByteBuffer data, int dataOffset) {
+        int length = Math.min(source.limit() - sourceOffset, data.limit() - dataOffset);
+        int matched = 0;
+        while (matched + 8 <= length && source.getLong(sourceOffset + matched) == data.getLong(dataOffset + matched)) {
+            matched += 8;
+        }
+        while (matched < length && source.get(sourceOffset + matched) == data.get(dataOffset + matched)) {
+            matched++;
+        }
+        return matched;
+    }
+
+    private void writeLiteral(ByteBuffer data, int start, int end) throws IOException {
+        if (end > start) {
+            flushCopy();
+            writeAction(TARGET_READ, end - start);
+            byte[] buf = new byte[Math.min(end - start, 64 * 1024)];
+            for (int offset = start; offset < end; offset += buf.length) {
+                int length = Math.min(buf.length, end - offset);
+                FileFunctions.getBytes(data, offset, buf, 0, length);
+                out.write(buf, 0, length);
+                targetCRC.update(buf, 0, length);
+            }
+            targetOffset += end - start;
+        }
+    }
+
+    // A copy from the same offset in the original is a source read, which costs no offset
+    private void flushCopy() throws IOException {
+        if (copyFrom < 0) {
+            return;
+        }
+        long end = targetOffset - copyLength;
+        if (copyFrom == end) {
+            writeAction(SOURCE_READ, copyLength);
+        } else {
+            writeAction(SOURCE_COPY, copyLength);
+            long relative = copyFrom - sourceRelativeOffset;
+            writeNumber((Math.abs(relative) << 1) | (relative < 0 ? 1 : 0));
+            sourceRelativeOffset = copyFrom + copyLength;
+        }
+        copyFrom = -1;
+        copyLength = 0;
+    }
+
+    private void writeAction(int action, long length) throws IOException {
+        writeNumber(((length - 1) << 2) | action);
+    }
+
+    private void writeNumber(long value) throws IOException {
+        while (true) {
+            int x = (int) (value & 0x7F);
+            value >>>= 7;
+            if (value == 0) {
+                out.write(0x80 | x);
+                return;
+            }
+            out.write(x);
+            value--;
+        }
+    }
+
+    private void writeCRC(long crc) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.write((int) (crc >>> (8 * i)) & 0xFF);
+        }
+    }
+}
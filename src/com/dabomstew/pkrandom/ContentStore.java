@@ -0,0 +1,152 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  ContentStore.java - keeps the contents of files taken out of a ROM,   --*/
+/*--                      in memory up to a budget and in temp files past   --*/
+/*--                      it.                                               --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Every loaded DS or 3DS ROM has its own store, so ROMs opened more than once at the same time
+// (e.g. by batch randomization workers) never see each other's files. Contents are kept in memory
+// until they add up to more than the budget; then the least recently used are moved out to temp
+// files, each created with a unique name, and moved back in when they are read again. Callers
+// always get and give their own copies.
+//
+// A key keeps the same temp file for as long as the store lives, and the file is only written
+// when it doesn't hold the current contents yet, so moving unchanged contents in and out costs
+// one read and no writes. Contents bigger than the whole budget stay in their file and are read
+// from it every time. The files are only deleted by dispose.
+public class ContentStore {
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private static volatile long defaultBudget = 256L * 1024 * 1024;
+
+    private final long budget;
+    private final LinkedHashMap<String, byte[]> inMemory = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, File> spillFiles = new HashMap<>();
+    // keys whose spill file holds their current contents
+    private final Set<String> spilled = new HashSet<>();
+    private long memoryUsed;
+
+    public ContentStore(long budget) {
+        this.budget = budget;
+    }
+
+    public static long getDefaultBudget() {
+        return defaultBudget;
+    }
+
+    public static void setDefaultBudget(long budget) {
+        defaultBudget = budget;
+    }
+
+    public boolean contains(String key) {
+        return inMemory.containsKey(key) || spilled.contains(key);
+    }
+
+    // returns -1 if nothing is stored under the key
+    public long length(String key) {
+        byte[] contents = inMemory.get(key);
+        if (contents != null) {
+            return contents.length;
+        }
+        return spilled.contains(key) ? spillFiles.get(key).length() : -1;
+    }
+
+    // returns null if nothing is stored under the key
+    public byte[] get(String key) throws IOException {
+        byte[] contents = inMemory.get(key);
+        if (contents != null) {
+            return contents.clone();
+        }
+        if (!spilled.contains(key)) {
+            return null;
+        }
+        contents = Files.readAllBytes(spillFiles.get(key).toPath());
+        if (contents.length <= budget) {
+            // the file still matches, so the contents can go back out later without a write
+            keep(key, contents.clone());
+        }
+        return contents;
+    }
+
+    public void put(String key, byte[] contents) throws IOException {
+        byte[] old = inMemory.remove(key);
+        if (old != null) {
+            memoryUsed -= old.length;
+        }
+        // the file is kept to be written over if the new contents are moved out later
+        spilled.remove(key);
+        if (contents.length > budget) {
+            spill(key, contents);
+            return;
+        }
+        keep(key, contents.clone());
+    }
+
+    private void keep(String key, byte[] contents) throws IOException {
+        inMemory.put(key, contents);
+        memoryUsed += contents.length;
+        Iterator<Map.Entry<String, byte[]>> eldest = inMemory.entrySet().iterator();
+        while (memoryUsed > budget) {
+            Map.Entry<String, byte[]> entry = eldest.next();
+            eldest.remove();
+            memoryUsed -= entry.getValue().length;
+            if (!spilled.contains(entry.getKey())) {
+                spill(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void spill(String key, byte[] contents) throws IOException {
+        File file = spillFiles.get(key);
+        if (file == null) {
+            file = Files.createTempFile("upr_", ".bin").toFile();
+            spillFiles.put(key, file);
+        }
+        Files.write(file.toPath(), contents);
+        spilled.add(key);
+    }
+
+    // Drops everything and deletes the temp files, for when the ROM will not be read from or
+    // saved again
+    public void dispose() {
+        inMemory.clear();
+        memoryUsed = 0;
+        for (File file : spillFiles.values()) {
+            file.delete();
+        }
+        spillFiles.clear();
+        spilled.clear();
+    }
+}
@@ -0,0 +1,125 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  RandomizationMetrics.java - records the time and memory taken by each --*/
+/*--                              phase of a randomization.                 --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// A randomization runs entirely on the thread that called Randomizer.randomize, so the CPU time
+// and allocations of that thread are those of the randomization. Each phase lasts until the next
+// one is started. CPU time and allocated bytes are -1 if the JVM cannot measure them.
+public class RandomizationMetrics {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static class Phase {
+        public final String name;
+        public final long wallNanos;
+        public final long cpuNanos;
+        public final long allocatedBytes;
+
+        private Phase(String name, long wallNanos, long cpuNanos, long allocatedBytes) {
+            this.name = name;
+            this.wallNanos = wallNanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<>();
+    private String currentPhase;
+    private long phaseWallStart;
+    private long phaseCpuStart;
+    private long phaseAllocatedStart;
+
+    public void startPhase(String name) {
+        endPhase();
+        currentPhase = name;
+        phaseAllocatedStart = allocatedBytes();
+        phaseCpuStart = cpuTime();
+        phaseWallStart = System.nanoTime();
+    }
+
+    public void endPhase() {
+        if (currentPhase == null) {
+            return;
+        }
+        long wall = System.nanoTime() - phaseWallStart;
+        long cpu = cpuTime();
+        long allocated = allocatedBytes();
+        phases.add(new Phase(currentPhase, wall,
+                cpu < 0 ? -1 : cpu - phaseCpuStart,
+                allocated < 0 ? -1 : allocated - phaseAllocatedStart));
+        currentPhase = null;
+    }
+
+    public List<Phase> getPhases() {
+        return Collections.unmodifiableList(phases);
+    }
+
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long allocatedBytes() {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    public void printSummary(PrintStream log) {
+        log.println("--Phase Timings--");
+        log.printf("%-24s|%10s|%10s|%12s%n", "PHASE", "WALL (ms)", "CPU (ms)", "ALLOC (KB)");
+        long totalWall = 0, totalCpu = 0, totalAllocated = 0;
+        for (Phase phase : phases) {
+            log.printf("%-24s|%10.1f|%10.1f|%12d%n", phase.name, phase.wallNanos / 1e6, phase.cpuNanos / 1e6,
+                    phase.allocatedBytes / 1024);
+            totalWall += phase.wallNanos;
+            totalCpu = phase.cpuNanos < 0 ? -1 : totalCpu + phase.cpuNanos;
+            totalAllocated = phase.allocatedBytes < 0 ? -1 : totalAllocated + phase.allocatedBytes;
+        }
+        log.printf("%-24s|%10.1f|%10.1f|%12d%n", "Total", totalWall / 1e6, totalCpu / 1e6, totalAllocated / 1024);
+        log.println();
+    }
+
+    // One row per phase, with the raw nanosecond and byte counts
+    public void writeCsv(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.write("phase,wall_ns,cpu_ns,allocated_bytes\n");
+        for (Phase phase : phases) {
+            writer.write(phase.name + "," + phase.wallNanos + "," + phase.cpuNanos + "," + phase.allocatedBytes + "\n");
+        }
+        writer.flush();
+    }
+}
@@ -0,0 +1,376 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  RandomizationReport.java - a machine-readable record of the changes   --*/
+/*--                             made by a randomization, written as JSON.  --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import com.dabomstew.pkrandom.pokemon.*;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+// The report is a tree of maps, lists, strings and numbers, filled in by the Randomizer as it
+// goes, with one section for every part of the game that was changed. Sections that were left
+// alone are simply absent. Pokemon, moves and items are reported by name, since that is what
+// the report is searched by.
+public class RandomizationReport {
+
+    private final Map<String, Object> root = new LinkedHashMap<>();
+
+    public Object get(String section) {
+        return root.get(section);
+    }
+
+    public void put(String section, Object value) {
+        root.put(section, value);
+    }
+
+    void recordHeader(long seed, String settingsString, RomHandler romHandler) {
+        root.put("version", Version.VERSION_STRING);
+        root.put("seed", seed);
+        root.put("settings", settingsString);
+        root.put("rom", romHandler.getROMName());
+        root.put("romCode", romHandler.getROMCode());
+    }
+
+    void recordResult(int checkValue, long elapsedMillis, int rngCalls) {
+        root.put("checkValue", checkValue);
+        root.put("elapsedMs", elapsedMillis);
+        root.put("rngCalls", rngCalls);
+    }
+
+    void recordStarters(RomHandler romHandler) {
+        List<Object> starters = new ArrayList<>();
+        for (Pokemon starter : romHandler.getPickedStarters()) {
+            starters.add(starter.fullName());
+        }
+        root.put("starters", starters);
+    }
+
+    void recordEvolutions(RomHandler romHandler) {
+        List<Object> evolutions = new ArrayList<>();
+        for (Pokemon pk : romHandler.getPokemonInclFormes()) {
+            if (pk == null || pk.actuallyCosmetic || pk.evolutionsFrom.isEmpty()) {
+                continue;
+            }
+            List<Object> targets = new ArrayList<>();
+            for (Evolution evo : pk.evolutionsFrom) {
+                targets.add(evo.toFullName());
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("from", pk.fullName());
+            entry.put("to", targets);
+            evolutions.add(entry);
+        }
+        root.put("evolutions", evolutions);
+    }
+
+    void recordPokemonTraits(RomHandler romHandler) {
+        List<Object> pokemon = new ArrayList<>();
+        int abilities = romHandler.abilitiesPerPokemon();
+        for (Pokemon pk : romHandler.getPokemonInclFormes()) {
+            if (pk == null || pk.actuallyCosmetic) {
+                continue;
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("name", pk.fullName());
+            List<Object> types = new ArrayList<>();
+            types.add(pk.primaryType == null ? null : pk.primaryType.toString());
+            if (pk.secondaryType != null) {
+                types.add(pk.secondaryType.toString());
+            }
+            entry.put("types", types);
+            if (romHandler.generationOfPokemon() == 1) {
+                entry.put("stats", Arrays.asList(pk.hp, pk.attack, pk.defense, pk.speed, pk.special));
+            } else {
+                entry.put("stats", Arrays.asList(pk.hp, pk.attack, pk.defense, pk.spatk, pk.spdef, pk.speed));
+            }
+            if (abilities > 0) {
+                List<Object> abilityNames = new ArrayList<>();
+                abilityNames.add(romHandler.abilityName(pk.ability1));
+                abilityNames.add(romHandler.abilityName(pk.ability2));
+                if (abilities > 2) {
+                    abilityNames.add(romHandler.abilityName(pk.ability3));
+                }
+                entry.put("abilities", abilityNames);
+            }
+            pokemon.add(entry);
+        }
+        root.put("pokemon", pokemon);
+    }
+
+    void recordMovesets(RomHandler romHandler) {
+        Map<Integer, List<MoveLearnt>> moveData = romHandler.getMovesLearnt();
+        List<Move> moves = romHandler.getMoves();
+        List<Object> movesets = new ArrayList<>();
+        for (Pokemon pk : romHandler.getPokemonInclFormes()) {
+            if (pk == null || pk.actuallyCosmetic || !moveData.containsKey(pk.number)) {
+                continue;
+            }
+            List<Object> learnt = new ArrayList<>();
+            for (MoveLearnt ml : moveData.get(pk.number)) {
+                learnt.add(Arrays.asList(ml.level, moves.get(ml.move).name));
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("pokemon", pk.fullName());
+            entry.put("moves", learnt);
+            movesets.add(entry);
+        }
+        root.put("movesets", movesets);
+    }
+
+    void recordTMMoves(RomHandler romHandler) {
+        root.put("tmMoves", moveNames(romHandler, romHandler.getTMMoves()));
+    }
+
+    void recordMoveTutorMoves(RomHandler romHandler) {
+        root.put("tutorMoves", moveNames(romHandler, romHandler.getMoveTutorMoves()));
+    }
+
+    void recordTrainers(RomHandler romHandler) {
+        String[] itemNames = romHandler.getItemNames();
+        List<Move> moves = romHandler.getMoves();
+        List<Object> trainers = new ArrayList<>();
+        for (Trainer t : romHandler.getTrainers()) {
+            List<Object> team = new ArrayList<>();
+            for (TrainerPokemon tpk : t.pokemon) {
+                Map<String, Object> member = new LinkedHashMap<>();
+                member.put("pokemon", tpk.pokemon.fullName());
+                member.put("level", tpk.level);
+                if (tpk.heldItem != 0) {
+                    member.put("item", itemNames[tpk.heldItem]);
+                }
+                List<Object> moveNames = new ArrayList<>();
+                for (int move : tpk.moves) {
+                    if (move != 0) {
+                        moveNames.add(moves.get(move).name);
+                    }
+                }
+                if (!moveNames.isEmpty()) {
+                    member.put("moves", moveNames);
+                }
+                team.add(member);
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("index", t.index);
+            entry.put("name", t.fullDisplayName != null ? t.fullDisplayName : t.name);
+            entry.put("tag", t.tag);
+            entry.put("team", team);
+            trainers.add(entry);
+        }
+        root.put("trainers", trainers);
+    }
+
+    void recordStaticPokemon(List<StaticEncounter> oldStatics, List<StaticEncounter> newStatics) {
+        root.put("staticPokemon", replacements(oldStatics, newStatics));
+    }
+
+    void recordTotemPokemon(List<TotemPokemon> oldTotems, List<TotemPokemon> newTotems) {
+        root.put("totemPokemon", replacements(oldTotems, newTotems));
+    }
+
+    void recordWildPokemon(List<EncounterSet> encounterSets) {
+        List<Object> sets = new ArrayList<>();
+        for (EncounterSet es : encounterSets) {
+            List<Object> encounters = new ArrayList<>();
+            for (Encounter e : es.encounters) {
+                Map<String, Object> encounter = new LinkedHashMap<>();
+                encounter.put("pokemon", e.pokemon.fullName());
+                encounter.put("level", e.level);
+                if (e.maxLevel > 0 && e.maxLevel != e.level) {
+                    encounter.put("maxLevel", e.maxLevel);
+                }
+                if (e.isSOS) {
+                    encounter.put("sos", e.sosType == null ? "GENERAL" : e.sosType.toString());
+                }
+                encounters.add(encounter);
+            }
+            Map<String, Object> set = new LinkedHashMap<>();
+            set.put("name", es.displayName);
+            set.put("rate", es.rate);
+            set.put("encounters", encounters);
+            sets.add(set);
+        }
+        root.put("wildPokemon", sets);
+    }
+
+    void recordTrades(List<IngameTrade> oldTrades, List<IngameTrade> newTrades) {
+        List<Object> trades = new ArrayList<>();
+        for (int i = 0; i < oldTrades.size(); i++) {
+            IngameTrade oldT = oldTrades.get(i);
+            IngameTrade newT = newTrades.get(i);
+            Map<String, Object> trade = new LinkedHashMap<>();
+            trade.put("oldRequested", oldT.requestedPokemon != null ? oldT.requestedPokemon.fullName() : null);
+            trade.put("oldGiven", oldT.givenPokemon.fullName());
+            trade.put("requested", newT.requestedPokemon != null ? newT.requestedPokemon.fullName() : null);
+            trade.put("given", newT.givenPokemon.fullName());
+            trade.put("nickname", newT.nickname);
+            trades.add(trade);
+        }
+        root.put("trades", trades);
+    }
+
+    void recordShops(RomHandler romHandler) {
+        String[] itemNames = romHandler.getItemNames();
+        List<Object> shops = new ArrayList<>();
+        for (Shop shop : romHandler.getShopItems().values()) {
+            List<Object> items = new ArrayList<>();
+            for (int item : shop.items) {
+                items.add(itemNames[item]);
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("name", shop.name);
+            entry.put("items", items);
+            shops.add(entry);
+        }
+        root.put("shops", shops);
+    }
+
+    void recordPickupItems(RomHandler romHandler) {
+        String[] itemNames = romHandler.getItemNames();
+        List<Object> pickupItems = new ArrayList<>();
+        for (PickupItem pickupItem : romHandler.getPickupItems()) {
+            List<Object> probabilities = new ArrayList<>();
+            for (int probability : pickupItem.probabilities) {
+                probabilities.add(probability);
+            }
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("item", itemNames[pickupItem.item]);
+            entry.put("probabilities", probabilities);
+            pickupItems.add(entry);
+        }
+        root.put("pickupItems", pickupItems);
+    }
+
+    private static List<Object> moveNames(RomHandler romHandler, List<Integer> moveIDs) {
+        List<Move> moves = romHandler.getMoves();
+        List<Object> names = new ArrayList<>();
+        for (int move : moveIDs) {
+            names.add(moves.get(move).name);
+        }
+        return names;
+    }
+
+    private static List<Object> replacements(List<? extends StaticEncounter> oldEncounters,
+                                             List<? extends StaticEncounter> newEncounters) {
+        List<Object> replacements = new ArrayList<>();
+        for (int i = 0; i < oldEncounters.size(); i++) {
+            StaticEncounter newP = newEncounters.get(i);
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("old", oldEncounters.get(i).pkmn.fullName());
+            entry.put("new", newP.pkmn.fullName());
+            entry.put("level", newP.level);
+            replacements.add(entry);
+        }
+        return replacements;
+    }
+
+    // Compact JSON: no whitespace between tokens, one report per line, so that reports of many
+    // seeds can be concatenated into a single JSON Lines file
+    public void writeJson(OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writeValue(writer, root);
+        writer.write('\n');
+        writer.flush();
+    }
+
+    public String toJson() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeValue(writer, root);
+        } catch (IOException e) {
+            // cannot happen with a StringWriter
+        }
+        return writer.toString();
+    }
+
+    private static void writeValue(Writer writer, Object value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+        } else if (value instanceof String) {
+            writeString(writer, (String) value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writer.write(value.toString());
+        } else if (value instanceof Map) {
+            writer.write('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    writer.write(',');
+                }
+                writeString(writer, entry.getKey().toString());
+                writer.write(':');
+                writeValue(writer, entry.getValue());
+                first = false;
+            }
+            writer.write('}');
+        } else if (value instanceof Collection) {
+            writer.write('[');
+            boolean first = true;
+            for (Object element : (Collection<?>) value) {
+                if (!first) {
+                    writer.write(',');
+                }
+                writeValue(writer, element);
+                first = false;
+            }
+            writer.write(']');
+        } else {
+            writeString(writer, value.toString());
+        }
+    }
+
+    private static void writeString(Writer writer, String text) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+                    break;
+            }
+        }
+        writer.write('"');
+    }
+}
@@ -29,6 +29,7 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.*;
 
+import com.dabomstew.pkrandom.exceptions.RandomizationStoppedException;
 import com.dabomstew.pkrandom.pokemon.*;
 import com.dabomstew.pkrandom.romhandlers.Gen1RomHandler;
 import com.dabomstew.pkrandom.romhandlers.RomHandler;
@@ -40,22 +41,58 @@ public class Randomizer {
 
     private final Settings settings;
     private final RomHandler romHandler;
+    private final RandomSource randomSource;
     private final ResourceBundle bundle;
     private final boolean saveAsDirectory;
+    private RandomizationReport report;
+    private RandomizationMetrics metrics;
+    private boolean dryRun;
+    private boolean savePatch;
+    private PhaseListener phaseListener;
+    private String currentPhase;
+
+    public interface PhaseListener {
+        // Returning false stops the randomization with a RandomizationStoppedException, before
+        // the next phase starts and without saving the ROM
+        boolean phaseCompleted(String phase);
+    }
 
     public Randomizer(Settings settings, RomHandler romHandler, ResourceBundle bundle, boolean saveAsDirectory) {
         this.settings = settings;
         this.romHandler = romHandler;
+        this.randomSource = romHandler.getRandomSource();
         this.bundle = bundle;
         this.saveAsDirectory = saveAsDirectory;
     }
 
+    // The report, if any, is filled in alongside the log by every following randomization
+    public void setReport(RandomizationReport report) {
+        this.report = report;
+    }
+
+    // Metrics, if set, are recorded for every phase of the following randomizations, and summed up
+    // at the end of the log
+    public void setMetrics(RandomizationMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // A dry run randomizes everything as usual but never saves the ROM, so that the check value
+    // and whether randomization succeeds can be found cheaply. The filename is ignored.
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    // Saves a patch against the loaded ROM instead of the whole new ROM
+    public void setSavePatch(boolean savePatch) {
+        this.savePatch = savePatch;
+    }
+
+    public void setPhaseListener(PhaseListener phaseListener) {
+        this.phaseListener = phaseListener;
+    }
+
     public int randomize(final String filename) {
-        return randomize(filename, new PrintStream(new OutputStream() {
-            @Override
-            public void write(int b) {
-            }
-        }));
+        return randomize(filename, null);
     }
 
     public int randomize(final String filename, final PrintStream log) {
@@ -64,13 +101,33 @@ public class Randomizer {
         return randomize(filename, log, seed);
     }
 
-    public int randomize(final String filename, final PrintStream log, long seed) {
+    // A null log skips building the log altogether, which saves a fair share of the work
+    // when many seeds are randomized without anyone reading their logs
+    public int randomize(final String filename, PrintStream log, long seed) {
 
         final long startTime = System.currentTimeMillis();
-        RandomSource.seed(seed);
+        randomSource.seed(seed);
+        currentPhase = null;
+
+        final boolean logging = log != null;
+        if (!logging) {
+            log = new PrintStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                }
+            });
+        }
 
         int checkValue = 0;
 
+        if (report != null) {
+            report.recordHeader(seed, Version.VERSION + settings.toString(), romHandler);
+        }
+
         log.println("Randomizer Version: " + Version.VERSION_STRING);
         log.println("Random Seed: " + seed);
         log.println("Settings String: " + Version.VERSION + settings.toString());
@@ -95,6 +152,7 @@ public class Randomizer {
         boolean tutorCompatChanged = false;
         boolean shopsChanged = false;
 
+        startPhase("Pokemon pool");
         // Limit Pokemon
         // 1. Set Pokemon pool according to limits (or lack thereof)
         // 2. If limited, remove evolutions that are outside of the pool
@@ -105,6 +163,7 @@ public class Randomizer {
             romHandler.removeEvosForPokemonPool();
         }
 
+        startPhase("Move data");
         // Move updates & data changes
         // 1. Update moves to a future generation
         // 2. Randomize move stats
@@ -115,7 +174,7 @@ public class Randomizer {
             movesUpdated = true;
         }
 
-        if (movesUpdated) {
+        if (movesUpdated && logging) {
             logMoveUpdates(log);
         }
 
@@ -144,34 +203,40 @@ public class Randomizer {
             movesChanged = true;
         }
 
+        startPhase("Misc tweaks");
         // Misc Tweaks
         if (settings.getCurrentMiscTweaks() != MiscTweak.NO_MISC_TWEAKS) {
             romHandler.applyMiscTweaks(settings);
         }
 
+        startPhase("Base stat updates");
         // Update base stats to a future generation
         if (settings.isUpdateBaseStats()) {
             romHandler.updatePokemonStats(settings);
             pokemonTraitsChanged = true;
         }
 
+        startPhase("EXP curves");
         // Standardize EXP curves
         if (settings.isStandardizeEXPCurves()) {
             romHandler.standardizeEXPCurves(settings);
         }
 
+        startPhase("Types");
         // Pokemon Types
         if (settings.getTypesMod() != Settings.TypesMod.UNCHANGED) {
             romHandler.randomizePokemonTypes(settings);
             pokemonTraitsChanged = true;
         }
 
+        startPhase("Wild held items");
         // Wild Held Items
         if (settings.isRandomizeWildPokemonHeldItems()) {
             romHandler.randomizeWildHeldItems(settings);
             pokemonTraitsChanged = true;
         }
 
+        startPhase("Evolutions");
         // Random Evos
         // Applied after type to pick new evos based on new types.
 
@@ -183,10 +248,14 @@ public class Randomizer {
             evolutionsChanged = true;
         }
 
-        if (evolutionsChanged) {
+        if (evolutionsChanged && logging) {
             logEvolutionChanges(log);
         }
+        if (evolutionsChanged && report != null) {
+            report.recordEvolutions(romHandler);
+        }
 
+        startPhase("Base stats");
         // Base stat randomization
         switch (settings.getBaseStatisticsMod()) {
             case SHUFFLE:
@@ -201,6 +270,7 @@ public class Randomizer {
                 break;
         }
 
+        startPhase("Abilities");
         // Abilities
         if (settings.getAbilitiesMod() == Settings.AbilitiesMod.RANDOMIZE) {
             romHandler.randomizeAbilities(settings);
@@ -209,10 +279,15 @@ public class Randomizer {
 
         // Log Pokemon traits (stats, abilities, etc) if any have changed
         if (pokemonTraitsChanged) {
-            logPokemonTraitChanges(log);
+            if (logging) {
+                logPokemonTraitChanges(log);
+            }
         } else {
             log.println("Pokemon base stats & type: unchanged" + NEWLINE);
         }
+        if (pokemonTraitsChanged && report != null) {
+            report.recordPokemonTraits(romHandler);
+        }
 
         for (Pokemon pkmn : romHandler.getPokemon()) {
             if (pkmn != null) {
@@ -221,6 +296,7 @@ public class Randomizer {
             }
         }
 
+        startPhase("Evolution updates");
         // Trade evolutions removal
         if (settings.isChangeImpossibleEvolutions()) {
             romHandler.removeImpossibleEvolutions(settings);
@@ -238,12 +314,12 @@ public class Randomizer {
         }
 
         // Log everything afterwards, so that "impossible evolutions" can account for "easier evolutions"
-        if (settings.isChangeImpossibleEvolutions()) {
+        if (settings.isChangeImpossibleEvolutions() && logging) {
             log.println("--Removing Impossible Evolutions--");
             logUpdatedEvolutions(log, romHandler.getImpossibleEvoUpdates(), romHandler.getEasierEvoUpdates());
         }
 
-        if (settings.isMakeEvolutionsEasier()) {
+        if (settings.isMakeEvolutionsEasier() && logging) {
             log.println("--Making Evolutions Easier--");
             if (!(romHandler instanceof Gen1RomHandler)) {
                 log.println("Friendship evolutions now take 160 happiness (was 220).");
@@ -251,11 +327,12 @@ public class Randomizer {
             logUpdatedEvolutions(log, romHandler.getEasierEvoUpdates(), null);
         }
 
-        if (settings.isRemoveTimeBasedEvolutions()) {
+        if (settings.isRemoveTimeBasedEvolutions() && logging) {
             log.println("--Removing Timed-Based Evolutions--");
             logUpdatedEvolutions(log, romHandler.getTimeBasedEvoUpdates(), null);
         }
 
+        startPhase("Starters");
         // Starter Pokemon
         // Applied after type to update the strings correctly based on new types
         switch(settings.getStartersMod()) {
@@ -278,18 +355,24 @@ public class Randomizer {
             romHandler.randomizeStarterHeldItems(settings);
         }
 
-        if (startersChanged) {
+        if (startersChanged && logging) {
             logStarters(log);
         }
+        if (startersChanged && report != null) {
+            report.recordStarters(romHandler);
+        }
 
         // Move Data Log
         // Placed here so it matches its position in the randomizer interface
         if (movesChanged) {
-            logMoveChanges(log);
+            if (logging) {
+                logMoveChanges(log);
+            }
         } else if (!movesUpdated) {
             log.println("Move Data: Unchanged." + NEWLINE);
         }
 
+        startPhase("Movesets");
         // Movesets
         // 1. Randomize movesets
         // 2. Reorder moves by damage
@@ -309,13 +392,19 @@ public class Randomizer {
 
         // Show the new movesets if applicable
         if (movesetsChanged) {
-            logMovesetChanges(log);
+            if (logging) {
+                logMovesetChanges(log);
+            }
         } else if (settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY) {
             log.println("Pokemon Movesets: Metronome Only." + NEWLINE);
         } else {
             log.println("Pokemon Movesets: Unchanged." + NEWLINE);
         }
+        if (movesetsChanged && report != null) {
+            report.recordMovesets(romHandler);
+        }
 
+        startPhase("TMs");
         // TMs
 
         if (!(settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY)
@@ -325,13 +414,20 @@ public class Randomizer {
         }
 
         if (tmMovesChanged) {
-            checkValue = logTMMoves(log, checkValue);
+            checkValue = addToCV(checkValue, romHandler.getTMMoves());
+            if (logging) {
+                logTMMoves(log);
+            }
+            if (report != null) {
+                report.recordTMMoves(romHandler);
+            }
         } else if (settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY) {
             log.println("TM Moves: Metronome Only." + NEWLINE);
         } else {
             log.println("TM Moves: Unchanged." + NEWLINE);
         }
 
+        startPhase("TM/HM compatibility");
         // TM/HM compatibility
         // 1. Randomize TM/HM compatibility
         // 2. Ensure levelup move sanity
@@ -369,9 +465,12 @@ public class Randomizer {
         // Copy TM/HM compatibility to cosmetic formes if it was changed at all, and log changes
         if (tmsHmsCompatChanged) {
             romHandler.copyTMCompatibilityToCosmeticFormes();
-            logTMHMCompatibility(log);
+            if (logging) {
+                logTMHMCompatibility(log);
+            }
         }
 
+        startPhase("Move tutors");
         // Move Tutors
         if (romHandler.hasMoveTutors()) {
 
@@ -385,7 +484,13 @@ public class Randomizer {
             }
 
             if (moveTutorMovesChanged) {
-                checkValue = logMoveTutorMoves(log, checkValue, oldMtMoves);
+                checkValue = addToCV(checkValue, romHandler.getMoveTutorMoves());
+                if (logging) {
+                    logMoveTutorMoves(log, oldMtMoves);
+                }
+                if (report != null) {
+                    report.recordMoveTutorMoves(romHandler);
+                }
             } else if (settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY) {
                 log.println("Move Tutor Moves: Metronome Only." + NEWLINE);
             } else {
@@ -423,11 +528,14 @@ public class Randomizer {
             // Copy move tutor compatibility to cosmetic formes if it was changed at all
             if (tutorCompatChanged) {
                 romHandler.copyMoveTutorCompatibilityToCosmeticFormes();
-                logTutorCompatibility(log);
+                if (logging) {
+                    logTutorCompatibility(log);
+                }
             }
 
         }
 
+        startPhase("Trainer Pokemon");
         // Trainer Pokemon
         // 1. Add extra Trainer Pokemon
         // 2. Set trainers to be double battles and add extra Pokemon if necessary
@@ -477,12 +585,14 @@ public class Randomizer {
             trainersChanged = true;
         }
 
+        startPhase("Trainer movesets");
         if (settings.isBetterTrainerMovesets()) {
             romHandler.pickTrainerMovesets(settings);
             trainersChanged = true;
             trainerMovesetsChanged = true;
         }
 
+        startPhase("Trainer held items");
         if (settings.isRandomizeHeldItemsForBossTrainerPokemon()
                 || settings.isRandomizeHeldItemsForImportantTrainerPokemon()
                 || settings.isRandomizeHeldItemsForRegularTrainerPokemon()) {
@@ -490,7 +600,8 @@ public class Randomizer {
             trainersChanged = true;
         }
 
-        List<String> originalTrainerNames = getTrainerNames();
+        startPhase("Trainer names");
+        List<String> originalTrainerNames = logging ? getTrainerNames() : null;
         boolean trainerNamesChanged = false;
 
         // Trainer names & class names randomization
@@ -509,11 +620,14 @@ public class Randomizer {
         }
 
         if (trainersChanged) {
-            maybeLogTrainerChanges(log, originalTrainerNames, trainerNamesChanged, trainerMovesetsChanged);
+            if (logging) {
+                maybeLogTrainerChanges(log, originalTrainerNames, trainerNamesChanged, trainerMovesetsChanged);
+            }
         } else {
             log.println("Trainers: Unchanged." + NEWLINE);
         }
 
+        startPhase("Metronome only");
         // Apply metronome only mode now that trainers have been dealt with
         if (settings.getMovesetsMod() == Settings.MovesetsMod.METRONOME_ONLY) {
             romHandler.metronomeOnlyMode();
@@ -525,7 +639,11 @@ public class Randomizer {
                 checkValue = addToCV(checkValue, tpk.level, tpk.pokemon.number);
             }
         }
+        if (trainersChanged && report != null) {
+            report.recordTrainers(romHandler);
+        }
 
+        startPhase("Static Pokemon");
         // Static Pokemon
         if (romHandler.canChangeStaticPokemon()) {
             List<StaticEncounter> oldStatics = romHandler.getStaticPokemon();
@@ -538,12 +656,21 @@ public class Randomizer {
             }
 
             if (staticsChanged) {
-                checkValue = logStaticPokemon(log, checkValue, oldStatics);
+                for (StaticEncounter se : romHandler.getStaticPokemon()) {
+                    checkValue = addToCV(checkValue, se.pkmn.number);
+                }
+                if (logging) {
+                    logStaticPokemon(log, oldStatics);
+                }
+                if (report != null) {
+                    report.recordStaticPokemon(oldStatics, romHandler.getStaticPokemon());
+                }
             } else {
                 log.println("Static Pokemon: Unchanged." + NEWLINE);
             }
         }
 
+        startPhase("Totem Pokemon");
         // Totem Pokemon
         if (romHandler.generationOfPokemon() == 7) {
             List<TotemPokemon> oldTotems = romHandler.getTotemPokemon();
@@ -558,12 +685,21 @@ public class Randomizer {
             }
 
             if (totemsChanged) {
-                checkValue = logTotemPokemon(log, checkValue, oldTotems);
+                for (TotemPokemon tp : romHandler.getTotemPokemon()) {
+                    checkValue = addToCV(checkValue, tp.pkmn.number);
+                }
+                if (logging) {
+                    logTotemPokemon(log, oldTotems);
+                }
+                if (report != null) {
+                    report.recordTotemPokemon(oldTotems, romHandler.getTotemPokemon());
+                }
             } else {
                 log.println("Totem Pokemon: Unchanged." + NEWLINE);
             }
         }
 
+        startPhase("Wild Pokemon");
         // Wild Pokemon
         // 1. Update catch rates
         // 2. Randomize Wild Pokemon
@@ -594,7 +730,9 @@ public class Randomizer {
         }
 
         if (wildsChanged) {
-            logWildPokemonChanges(log);
+            if (logging) {
+                logWildPokemonChanges(log);
+            }
         } else {
             log.println("Wild Pokemon: Unchanged." + NEWLINE);
         }
@@ -607,8 +745,12 @@ public class Randomizer {
                 checkValue = addToCV(checkValue, e.level, e.pokemon.number);
             }
         }
+        if (wildsChanged && report != null) {
+            report.recordWildPokemon(encounters);
+        }
 
 
+        startPhase("Trades");
         // In-game trades
 
         List<IngameTrade> oldTrades = romHandler.getIngameTrades();
@@ -622,10 +764,14 @@ public class Randomizer {
                 break;
         }
 
-        if (tradesChanged) {
+        if (tradesChanged && logging) {
             logTrades(log, oldTrades);
         }
+        if (tradesChanged && report != null) {
+            report.recordTrades(oldTrades, romHandler.getIngameTrades());
+        }
 
+        startPhase("Field items");
         // Field Items
         switch(settings.getFieldItemsMod()) {
             case SHUFFLE:
@@ -639,6 +785,7 @@ public class Randomizer {
                 break;
         }
 
+        startPhase("Shops");
         // Shops
 
         switch(settings.getShopItemsMod()) {
@@ -654,19 +801,29 @@ public class Randomizer {
                 break;
         }
 
-        if (shopsChanged) {
+        if (shopsChanged && logging) {
             logShops(log);
         }
+        if (shopsChanged && report != null) {
+            report.recordShops(romHandler);
+        }
 
+        startPhase("Pickup items");
         // Pickup Items
         if (settings.getPickupItemsMod() == Settings.PickupItemsMod.RANDOM) {
             romHandler.randomizePickupItems(settings);
-            logPickupItems(log);
+            if (logging) {
+                logPickupItems(log);
+            }
+            if (report != null) {
+                report.recordPickupItems(romHandler);
+            }
         }
 
         // Test output for placement history
         // romHandler.renderPlacementHistory();
 
+        startPhase("Intro Pokemon");
         // Intro Pokemon...
         romHandler.randomizeIntroPokemon();
 
@@ -674,12 +831,19 @@ public class Randomizer {
         romHandler.writeCheckValueToROM(checkValue);
 
         // Save
-        if (saveAsDirectory) {
-            romHandler.saveRomDirectory(filename);
-        } else {
-            romHandler.saveRomFile(filename, seed);
+        if (!dryRun) {
+            startPhase("Save");
+            if (savePatch) {
+                romHandler.saveRomPatch(filename);
+            } else if (saveAsDirectory) {
+                romHandler.saveRomDirectory(filename);
+            } else {
+                romHandler.saveRomFile(filename, seed);
+            }
         }
 
+        endPhase();
+
         // Log tail
         String gameName = romHandler.getROMName();
         if (romHandler.hasGameUpdateLoaded()) {
@@ -688,43 +852,69 @@ public class Randomizer {
         log.println("------------------------------------------------------------------");
         log.println("Randomization of " + gameName + " completed.");
         log.println("Time elapsed: " + (System.currentTimeMillis() - startTime) + "ms");
-        log.println("RNG Calls: " + RandomSource.callsSinceSeed());
+        log.println("RNG Calls: " + randomSource.callsSinceSeed());
         log.println("------------------------------------------------------------------");
         log.println();
 
+        if (metrics != null && logging) {
+            metrics.printSummary(log);
+        }
+
+        if (report != null) {
+            report.recordResult(checkValue, System.currentTimeMillis() - startTime, randomSource.callsSinceSeed());
+        }
+
         // Diagnostics
         log.println("--ROM Diagnostics--");
         if (!romHandler.isRomValid()) {
             log.println(bundle.getString("Log.InvalidRomLoaded"));
         }
-        romHandler.printRomDiagnostics(log);
+        if (logging) {
+            romHandler.printRomDiagnostics(log);
+        }
 
         return checkValue;
     }
 
-    private int logMoveTutorMoves(PrintStream log, int checkValue, List<Integer> oldMtMoves) {
+    private void startPhase(String name) {
+        endPhase();
+        currentPhase = name;
+        randomSource.startSubstream(name);
+        if (metrics != null) {
+            metrics.startPhase(name);
+        }
+    }
+
+    private void endPhase() {
+        if (metrics != null) {
+            metrics.endPhase();
+        }
+        String completedPhase = currentPhase;
+        currentPhase = null;
+        if (completedPhase != null && phaseListener != null && !phaseListener.phaseCompleted(completedPhase)) {
+            throw new RandomizationStoppedException(completedPhase);
+        }
+    }
+
+    private void logMoveTutorMoves(PrintStream log, List<Integer> oldMtMoves) {
         log.println("--Move Tutor Moves--");
         List<Integer> newMtMoves = romHandler.getMoveTutorMoves();
         List<Move> moves = romHandler.getMoves();
         for (int i = 0; i < newMtMoves.size(); i++) {
             log.printf("%-10s -> %-10s" + NEWLINE, moves.get(oldMtMoves.get(i)).name,
                     moves.get(newMtMoves.get(i)).name);
-            checkValue = addToCV(checkValue, newMtMoves.get(i));
         }
         log.println();
-        return checkValue;
     }
 
-    private int logTMMoves(PrintStream log, int checkValue) {
+    private void logTMMoves(PrintStream log) {
         log.println("--TM Moves--");
         List<Integer> tmMoves = romHandler.getTMMoves();
         List<Move> moves = romHandler.getMoves();
         for (int i = 0; i < tmMoves.size(); i++) {
             log.printf("TM%02d %s" + NEWLINE, i + 1, moves.get(tmMoves.get(i)).name);
-            checkValue = addToCV(checkValue, tmMoves.get(i));
         }
         log.println();
-        return checkValue;
     }
 
     private void logTrades(PrintStream log, List<IngameTrade> oldTrades) {
@@ -1197,7 +1387,7 @@ public class Randomizer {
         log.println();
     }
 
-    private int logStaticPokemon(final PrintStream log, int checkValue, List<StaticEncounter> oldStatics) {
+    private void logStaticPokemon(final PrintStream log, List<StaticEncounter> oldStatics) {
 
         List<StaticEncounter> newStatics = romHandler.getStaticPokemon();
 
@@ -1206,7 +1396,6 @@ public class Randomizer {
         for (int i = 0; i < oldStatics.size(); i++) {
             StaticEncounter oldP = oldStatics.get(i);
             StaticEncounter newP = newStatics.get(i);
-            checkValue = addToCV(checkValue, newP.pkmn.number);
             String oldStaticString = oldP.toString(settings.isStaticLevelModified());
             log.print(oldStaticString);
             if (seenPokemon.containsKey(oldStaticString)) {
@@ -1219,11 +1408,9 @@ public class Randomizer {
             log.println(" => " + newP.toString(settings.isStaticLevelModified()));
         }
         log.println();
-
-        return checkValue;
     }
 
-    private int logTotemPokemon(final PrintStream log, int checkValue, List<TotemPokemon> oldTotems) {
+    private void logTotemPokemon(final PrintStream log, List<TotemPokemon> oldTotems) {
 
         List<TotemPokemon> newTotems = romHandler.getTotemPokemon();
 
@@ -1232,13 +1419,10 @@ public class Randomizer {
         for (int i = 0; i < oldTotems.size(); i++) {
             TotemPokemon oldP = oldTotems.get(i);
             TotemPokemon newP = newTotems.get(i);
-            checkValue = addToCV(checkValue, newP.pkmn.number);
             log.println(oldP.pkmn.fullName() + " =>");
             log.printf(newP.toString(),itemNames[newP.heldItem]);
         }
         log.println();
-
-        return checkValue;
     }
 
     private void logMoveChanges(final PrintStream log) {
@@ -1332,6 +1516,13 @@ public class Randomizer {
     }
 
     
+    private static int addToCV(int checkValue, List<Integer> values) {
+        for (int value : values) {
+            checkValue = addToCV(checkValue, value);
+        }
+        return checkValue;
+    }
+
     private static int addToCV(int checkValue, int... values) {
         for (int value : values) {
             checkValue = Integer.rotateLeft(checkValue, 3);
@@ -0,0 +1,141 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  RomFileHeader.java - reads the start of a ROM file once, so that the  --*/
+/*--                       ROM handler factories can detect it from memory. --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
+
+// The first 32 KB of the file are read up front, which covers the headers of every supported
+// format, including 3DS games inside a CCI or CIA container. Reads past that extend the cached
+// prefix up to 1 MB (the most that GBA detection looks at), and are read directly from the file
+// beyond that. Bytes past the end of the file read as zero.
+public class RomFileHeader {
+
+    public enum Format {
+        GB, GBA, NDS, CTR, UNKNOWN
+    }
+
+    private static final int INITIAL_PREFIX = 0x8000;
+    private static final int MAX_PREFIX = 0x100000;
+
+    private final String filename;
+    private final long length;
+    private byte[] prefix;
+    private Format format;
+
+    public RomFileHeader(String filename) {
+        this.filename = filename;
+        File fh = new File(filename);
+        this.length = fh.isFile() && fh.canRead() ? fh.length() : 0;
+        this.prefix = new byte[0];
+        readPrefix(INITIAL_PREFIX);
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public Format getFormat() {
+        if (format == null) {
+            format = sniffFormat();
+        }
+        return format;
+    }
+
+    private Format sniffFormat() {
+        int ctrMagic = readBigEndianInt(0x100);
+        if (ctrMagic == 0x4E435344 || ctrMagic == 0x4E434348 || readInt(0) == 0x2020) {
+            // NCSD, NCCH or the header size of a CIA
+            return Format.CTR;
+        }
+        byte[] nds = read(0x15C, 2);
+        if (nds[0] == 0x56 && nds[1] == (byte) 0xCF) {
+            // CRC of the Nintendo logo, which is the same in every DS header
+            return Format.NDS;
+        }
+        byte[] gb = read(0x104, 4);
+        if (gb[0] == (byte) 0xCE && gb[1] == (byte) 0xED && gb[2] == 0x66 && gb[3] == 0x66) {
+            // start of the Nintendo logo in every GB/GBC header
+            return Format.GB;
+        }
+        byte[] gba = read(0x04, 4);
+        if (gba[0] == 0x24 && gba[1] == (byte) 0xFF && gba[2] == (byte) 0xAE && gba[3] == 0x51
+                && read(0xB2, 1)[0] == (byte) 0x96) {
+            // start of the Nintendo logo and the fixed value in every GBA header
+            return Format.GBA;
+        }
+        return Format.UNKNOWN;
+    }
+
+    // Always a new array, so callers are free to modify it
+    public byte[] read(long offset, int size) {
+        byte[] buf = new byte[size];
+        if (offset + size > prefix.length && offset + size <= MAX_PREFIX) {
+            readPrefix((int) (offset + size));
+        }
+        if (offset + size <= prefix.length) {
+            System.arraycopy(prefix, (int) offset, buf, 0, size);
+        } else if (offset < length) {
+            try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+                file.seek(offset);
+                file.readFully(buf, 0, (int) Math.min(size, length - offset));
+            } catch (IOException e) {
+                throw new RandomizerIOException(e);
+            }
+        }
+        return buf;
+    }
+
+    public int readInt(long offset) {
+        return FileFunctions.readFullInt(read(offset, 4), 0);
+    }
+
+    public int readBigEndianInt(long offset) {
+        return FileFunctions.readFullIntBigEndian(read(offset, 4), 0);
+    }
+
+    private void readPrefix(int size) {
+        int newSize = (int) Math.min(length, Math.max(size, prefix.length));
+        if (newSize <= prefix.length) {
+            return;
+        }
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            byte[] newPrefix = new byte[newSize];
+            System.arraycopy(prefix, 0, newPrefix, 0, prefix.length);
+            file.seek(prefix.length);
+            file.readFully(newPrefix, prefix.length, newSize - prefix.length);
+            prefix = newPrefix;
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.dabomstew.pkrandom;
+
+/*----------------------------------------------------------------------------*/
+/*--  RomIOEvent.java - a Java Flight Recorder event for reading, building  --*/
+/*--                    and writing the files inside DS and 3DS ROMs, when  --*/
+/*--                    the running Java has a flight recorder.             --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Recorded by any standard flight recording (e.g. -XX:StartFlightRecording) and shown under
+// "Universal Pokemon Randomizer" in JDK Mission Control. The randomizer still runs on Java 8,
+// which has no jdk.jfr to compile against, so the event type is made at runtime through
+// jdk.jfr.EventFactory (Java 9 and up) and driven by reflection. Where that isn't there, every
+// event does nothing. When no recording is running, the event is never committed and costs
+// next to nothing.
+public class RomIOEvent {
+
+    private static final Object factory;
+    private static final Method newEvent, begin, end, shouldCommit, set, commit;
+
+    static {
+        Object eventFactory = null;
+        Method[] methods = new Method[6];
+        try {
+            Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+            Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+            Constructor<?> field = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+            List<Object> eventAnnotations = Arrays.asList(
+                    annotation.newInstance(Class.forName("jdk.jfr.Name"), "com.dabomstew.pkrandom.RomIO"),
+                    annotation.newInstance(Class.forName("jdk.jfr.Label"), "ROM I/O"),
+                    annotation.newInstance(Class.forName("jdk.jfr.Category"),
+                            new String[] { "Universal Pokemon Randomizer", "ROM I/O" }),
+                    annotation.newInstance(Class.forName("jdk.jfr.Description"),
+                            "Reading, building or writing a file inside a DS or 3DS ROM"));
+            Object operationLabel = annotation.newInstance(Class.forName("jdk.jfr.Label"), "Operation");
+            Object fileLabel = annotation.newInstance(Class.forName("jdk.jfr.Label"), "File");
+            Object bytesLabel = annotation.newInstance(Class.forName("jdk.jfr.Label"), "Bytes");
+            Object compressedLabel = annotation.newInstance(Class.forName("jdk.jfr.Label"), "Compressed Bytes");
+            Object compressedDescription = annotation.newInstance(Class.forName("jdk.jfr.Description"),
+                    "Size of the compressed side, for compression and decompression");
+            Object dataAmount = annotation.newInstance(Class.forName("jdk.jfr.DataAmount"), "BYTES");
+
+            // The order here is the order of the indices given to set below
+            List<Object> fields = new ArrayList<>();
+            fields.add(field.newInstance(String.class, "operation", Collections.singletonList(operationLabel)));
+            fields.add(field.newInstance(String.class, "file", Collections.singletonList(fileLabel)));
+            fields.add(field.newInstance(long.class, "bytes", Arrays.asList(bytesLabel, dataAmount)));
+            fields.add(field.newInstance(long.class, "compressedBytes",
+                    Arrays.asList(compressedLabel, compressedDescription, dataAmount)));
+
+            eventFactory = factoryClass.getMethod("create", List.class, List.class)
+                    .invoke(null, eventAnnotations, fields);
+            methods[0] = factoryClass.getMethod("newEvent");
+            methods[1] = eventClass.getMethod("begin");
+            methods[2] = eventClass.getMethod("end");
+            methods[3] = eventClass.getMethod("shouldCommit");
+            methods[4] = eventClass.getMethod("set", int.class, Object.class);
+            methods[5] = eventClass.getMethod("commit");
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            // no flight recorder in this Java
+            eventFactory = null;
+        }
+        factory = eventFactory;
+        newEvent = methods[0];
+        begin = methods[1];
+        end = methods[2];
+        shouldCommit = methods[3];
+        set = methods[4];
+        commit = methods[5];
+    }
+
+    // null when there is no flight recorder, or it failed along the way
+    private Object event;
+
+    public static RomIOEvent start(String operation, String file) {
+        RomIOEvent event = new RomIOEvent();
+        if (factory != null) {
+            try {
+                event.event = newEvent.invoke(factory);
+                set.invoke(event.event, 0, operation);
+                set.invoke(event.event, 1, file);
+                begin.invoke(event.event);
+            } catch (ReflectiveOperationException e) {
+                event.event = null;
+            }
+        }
+        return event;
+    }
+
+    public void finish(long bytes) {
+        finish(bytes, 0);
+    }
+
+    public void finish(long bytes, long compressedBytes) {
+        if (event == null) {
+            return;
+        }
+        try {
+            end.invoke(event);
+            if ((Boolean) shouldCommit.invoke(event)) {
+                set.invoke(event, 2, bytes);
+                set.invoke(event, 3, compressedBytes);
+                commit.invoke(event);
+            }
+        } catch (ReflectiveOperationException e) {
+            // recording is never worth failing the randomization over
+        }
+        event = null;
+    }
+}
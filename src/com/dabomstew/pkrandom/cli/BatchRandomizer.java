@@ -0,0 +1,234 @@
+package com.dabomstew.pkrandom.cli;
+
+/*----------------------------------------------------------------------------*/
+/*--  BatchRandomizer.java - randomizes many seeds of the same ROM and      --*/
+/*--                         settings concurrently on a pool of workers.    --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import com.dabomstew.pkrandom.CustomNamesSet;
+import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.RandomizationMetrics;
+import com.dabomstew.pkrandom.RandomizationReport;
+import com.dabomstew.pkrandom.Randomizer;
+import com.dabomstew.pkrandom.Settings;
+import com.dabomstew.pkrandom.exceptions.RandomizationException;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Each seed is handled by a worker that owns its own RomHandler, Randomizer and RandomSource,
+// so seeds are randomized fully in parallel. The ROM is only read from disk once; every other
+// worker forks the first handler, sharing its original ROM data. How many workers randomize at
+// the same time is limited by a HeapGovernor, so that large games do not run out of heap.
+public class BatchRandomizer {
+
+    private final RomHandler.Factory factory;
+    private final String sourceRomFilePath;
+    private final String updateFilePath;
+    private final String settingsString;
+    private final CustomNamesSet customNames;
+    private final ResourceBundle bundle;
+    private final String outputPrefix;
+    private final boolean saveAsDirectory;
+    private final boolean saveLog;
+    private final boolean compressLog;
+    private final boolean saveReport;
+    private final boolean saveMetrics;
+    private final boolean dryRun;
+    private final boolean savePatch;
+
+    private final AtomicInteger finishedSeeds = new AtomicInteger(0);
+    private int numberOfSeeds;
+    private Long baseSeed;
+
+    public BatchRandomizer(RomHandler.Factory factory, String sourceRomFilePath, String updateFilePath,
+                           Settings settings, ResourceBundle bundle, String outputPrefix,
+                           boolean saveAsDirectory, boolean saveLog, boolean compressLog,
+                           boolean saveReport, boolean saveMetrics, boolean dryRun, boolean savePatch) {
+        this.factory = factory;
+        this.sourceRomFilePath = sourceRomFilePath;
+        this.updateFilePath = updateFilePath;
+        // Settings are tweaked per ROM handler, so every worker gets its own copy
+        this.settingsString = settings.toString();
+        this.customNames = settings.getCustomNames();
+        this.bundle = bundle;
+        this.outputPrefix = outputPrefix;
+        this.saveAsDirectory = saveAsDirectory;
+        this.saveLog = saveLog;
+        this.compressLog = compressLog;
+        this.saveReport = saveReport;
+        this.saveMetrics = saveMetrics;
+        this.dryRun = dryRun;
+        this.savePatch = savePatch;
+    }
+
+    // Without a base seed every ROM gets a random seed. With one, the ROM with index i gets
+    // baseSeed + i, so a batch, or any single ROM of it, can be randomized again the same way.
+    public void setBaseSeed(Long baseSeed) {
+        this.baseSeed = baseSeed;
+    }
+
+    /**
+     * Randomizes numberOfSeeds ROMs, named after the output prefix and their index.
+     *
+     * @param firstHandler An already loaded handler to use for the first seed, or null
+     * @param workers The most seeds to randomize at once
+     * @param heapCeiling The heap, in bytes, that the seeds in flight should stay under
+     * @return The number of seeds that failed to randomize
+     */
+    public int randomize(RomHandler firstHandler, int numberOfSeeds, int startingIndex, int workers,
+                         long heapCeiling) {
+        this.numberOfSeeds = numberOfSeeds;
+        finishedSeeds.set(0);
+        if (firstHandler == null) {
+            try {
+                firstHandler = loadRomHandler();
+            } catch (Exception e) {
+                CliRandomizer.printError("Could not load " + sourceRomFilePath);
+                e.printStackTrace();
+                return numberOfSeeds;
+            }
+        }
+        final RomHandler baseHandler = firstHandler;
+        final HeapGovernor governor = new HeapGovernor(heapCeiling, workers,
+                HeapGovernor.initialEstimate(baseHandler.generationOfPokemon()));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, numberOfSeeds)));
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = startingIndex; i < startingIndex + numberOfSeeds; i++) {
+            final int index = i;
+            final boolean fork = i != startingIndex;
+            results.add(executor.submit(() -> {
+                governor.acquire();
+                try {
+                    return randomizeSeed(index, baseHandler, fork);
+                } finally {
+                    governor.release();
+                }
+            }));
+        }
+        executor.shutdown();
+
+        int failures = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (!result.get()) {
+                    failures++;
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    private boolean randomizeSeed(int index, RomHandler baseHandler, boolean fork) {
+        String filename = outputPrefix + index;
+        RomHandler romHandler = null;
+        long seed = 0;
+        try {
+            romHandler = fork ? forkRomHandler(baseHandler) : baseHandler;
+            if (saveAsDirectory) {
+                if (!dryRun) {
+                    new File(filename).mkdirs();
+                }
+            } else {
+                filename += "." + (savePatch ? romHandler.getPatchExtension() : romHandler.getDefaultExtension());
+            }
+            filename = new File(filename).getAbsolutePath();
+
+            Settings settings = Settings.fromString(settingsString);
+            settings.setCustomNames(customNames);
+            settings.tweakForRom(romHandler);
+
+            PrintStream log = CliRandomizer.openLog(filename, saveLog, compressLog);
+            RandomizationReport report = saveReport ? new RandomizationReport() : null;
+            RandomizationMetrics metrics = saveMetrics ? new RandomizationMetrics() : null;
+            Randomizer randomizer = new Randomizer(settings, romHandler, bundle, saveAsDirectory);
+            randomizer.setReport(report);
+            randomizer.setMetrics(metrics);
+            randomizer.setDryRun(dryRun);
+            randomizer.setSavePatch(savePatch);
+            seed = baseSeed == null ? RandomSource.pickSeed() : baseSeed + index;
+            int checkValue;
+            try {
+                checkValue = randomizer.randomize(filename, log, seed);
+            } finally {
+                CliRandomizer.closeLog(log, filename);
+            }
+            CliRandomizer.writeReport(report, filename);
+            CliRandomizer.writeMetrics(metrics, filename);
+            if (dryRun) {
+                System.out.printf("Dry ran %s with seed %d, check value %08X (%d/%d)%n", filename, seed, checkValue,
+                        finishedSeeds.incrementAndGet(), numberOfSeeds);
+            } else {
+                System.out.printf("Randomized %s with seed %d (%d/%d)%n", filename, seed,
+                        finishedSeeds.incrementAndGet(), numberOfSeeds);
+            }
+            return true;
+        } catch (RandomizationException e) {
+            // Expected for some seeds with strict settings; dry runs are mostly used to count these
+            CliRandomizer.printError("Randomization of " + filename + " with seed " + seed + " failed: "
+                    + e.getMessage());
+            if (!dryRun) {
+                e.printStackTrace();
+            }
+            return false;
+        } catch (Exception e) {
+            CliRandomizer.printError("Randomization of " + filename + " failed");
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (romHandler != null) {
+                CliRandomizer.disposeRomHandler(romHandler);
+            }
+        }
+    }
+
+    private RomHandler loadRomHandler() {
+        RomHandler romHandler = factory.create(new RandomSource());
+        romHandler.setDryRun(dryRun);
+        romHandler.loadRom(sourceRomFilePath);
+        if (updateFilePath != null && (romHandler.generationOfPokemon() == 6 || romHandler.generationOfPokemon() == 7)) {
+            romHandler.loadGameUpdate(updateFilePath);
+        }
+        return romHandler;
+    }
+
+    private RomHandler forkRomHandler(RomHandler baseHandler) {
+        RomHandler romHandler = factory.create(new RandomSource());
+        romHandler.setDryRun(dryRun);
+        if (!romHandler.loadRomFrom(baseHandler)) {
+            return loadRomHandler();
+        }
+        return romHandler;
+    }
+}
@@ -1,12 +1,16 @@
 package com.dabomstew.pkrandom.cli;
 
+import com.dabomstew.pkrandom.ContentStore;
 import com.dabomstew.pkrandom.FileFunctions;
 import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.RandomizationMetrics;
+import com.dabomstew.pkrandom.RandomizationReport;
 import com.dabomstew.pkrandom.Randomizer;
 import com.dabomstew.pkrandom.Settings;
 import com.dabomstew.pkrandom.romhandlers.*;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -14,104 +18,83 @@ import java.util.ResourceBundle;
 
 public class CliRandomizer {
 
-    private final static ResourceBundle bundle = java.util.ResourceBundle.getBundle("com/dabomstew/pkrandom/newgui/Bundle");
+    final static ResourceBundle bundle = java.util.ResourceBundle.getBundle("com/dabomstew/pkrandom/newgui/Bundle");
+
+    // borrowed directly from NewRandomizerGUI()
+    private final static RomHandler.Factory[] checkHandlers = new RomHandler.Factory[] {
+            new Gen1RomHandler.Factory(),
+            new Gen2RomHandler.Factory(),
+            new Gen3RomHandler.Factory(),
+            new Gen4RomHandler.Factory(),
+            new Gen5RomHandler.Factory(),
+            new Gen6RomHandler.Factory(),
+            new Gen7RomHandler.Factory()
+    };
 
     private static boolean performDirectRandomization(String settingsFilePath, String sourceRomFilePath,
                                                       String destinationRomFilePath, boolean saveAsDirectory,
-                                                      String updateFilePath, boolean saveLog) {
-        // borrowed directly from NewRandomizerGUI()
-        RomHandler.Factory[] checkHandlers = new RomHandler.Factory[] {
-                new Gen1RomHandler.Factory(),
-                new Gen2RomHandler.Factory(),
-                new Gen3RomHandler.Factory(),
-                new Gen4RomHandler.Factory(),
-                new Gen5RomHandler.Factory(),
-                new Gen6RomHandler.Factory(),
-                new Gen7RomHandler.Factory()
-        };
-
-        Settings settings;
-        try {
-            File fh = new File(settingsFilePath);
-            FileInputStream fis = new FileInputStream(fh);
-            settings = Settings.read(fis);
-            // taken from com.dabomstew.pkrandom.newgui.NewRandomizerGUI.saveROM, set distinctly from all other settings
-            settings.setCustomNames(FileFunctions.getCustomNames());
-            fis.close();
-        } catch (UnsupportedOperationException | IllegalArgumentException | IOException ex) {
-            ex.printStackTrace();
+                                                      String updateFilePath, boolean saveLog,
+                                                      boolean compressLog, boolean saveReport,
+                                                      boolean saveMetrics, boolean dryRun, boolean savePatch,
+                                                      Long seed) {
+        Settings settings = readSettings(settingsFilePath);
+        if (settings == null) {
             return false;
         }
 
-        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        PrintStream log;
-        try {
-            log = new PrintStream(baos, false, "UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            log = new PrintStream(baos);
-        }
-
-        final PrintStream verboseLog = log;
-
         try {
             File romFileHandler = new File(sourceRomFilePath);
-            RomHandler romHandler;
-
-            for (RomHandler.Factory rhf : checkHandlers) {
-                if (rhf.isLoadable(romFileHandler.getAbsolutePath())) {
-                    romHandler = rhf.create(RandomSource.instance());
-                    romHandler.loadRom(romFileHandler.getAbsolutePath());
-                    if (updateFilePath != null && (romHandler.generationOfPokemon() == 6 || romHandler.generationOfPokemon() == 7)) {
-                        romHandler.loadGameUpdate(updateFilePath);
-                        if (!saveAsDirectory) {
-                            printWarning("Forcing save as directory since a game update was supplied.");
-                        }
-                        saveAsDirectory = true;
-                    }
-                    if (saveAsDirectory && romHandler.generationOfPokemon() != 6 && romHandler.generationOfPokemon() != 7) {
-                        saveAsDirectory = false;
-                        printWarning("Saving as directory does not make sense for non-3DS games, ignoring \"-d\" flag...");
-                    }
+            RomHandler.Factory rhf = findFactory(romFileHandler);
+            if (rhf != null) {
+                RomHandler romHandler = rhf.create(new RandomSource());
+                romHandler.setDryRun(dryRun);
+                romHandler.loadRom(romFileHandler.getAbsolutePath());
+                saveAsDirectory = loadGameUpdate(romHandler, updateFilePath, saveAsDirectory);
 
-                    CliRandomizer.displaySettingsWarnings(settings, romHandler);
+                CliRandomizer.displaySettingsWarnings(settings, romHandler);
 
-                    File fh = new File(destinationRomFilePath);
-                    if (!saveAsDirectory) {
-                        List<String> extensions = new ArrayList<>(Arrays.asList("sgb", "gbc", "gba", "nds", "cxi"));
-                        extensions.remove(romHandler.getDefaultExtension());
+                File fh = new File(destinationRomFilePath);
+                if (!saveAsDirectory) {
+                    List<String> extensions = new ArrayList<>(Arrays.asList("sgb", "gbc", "gba", "nds", "cxi"));
+                    String extension = savePatch ? romHandler.getPatchExtension() : romHandler.getDefaultExtension();
+                    extensions.remove(extension);
 
-                        fh = FileFunctions.fixFilename(fh, romHandler.getDefaultExtension(), extensions);
-                        if (romHandler instanceof AbstractDSRomHandler || romHandler instanceof Abstract3DSRomHandler) {
-                            String currentFN = romHandler.loadedFilename();
-                            if (currentFN.equals(fh.getAbsolutePath())) {
-                                printError(bundle.getString("GUI.cantOverwriteDS"));
-                                return false;
-                            }
+                    fh = FileFunctions.fixFilename(fh, extension, extensions);
+                    if (romHandler instanceof AbstractDSRomHandler || romHandler instanceof Abstract3DSRomHandler) {
+                        String currentFN = romHandler.loadedFilename();
+                        if (currentFN.equals(fh.getAbsolutePath())) {
+                            printError(bundle.getString("GUI.cantOverwriteDS"));
+                            return false;
                         }
                     }
+                }
 
-                    String filename = fh.getAbsolutePath();
+                String filename = fh.getAbsolutePath();
 
-                    Randomizer randomizer = new Randomizer(settings, romHandler, bundle, saveAsDirectory);
-                    randomizer.randomize(filename, verboseLog);
-                    verboseLog.close();
-                    byte[] out = baos.toByteArray();
-                    if (saveLog) {
-                        try {
-                            FileOutputStream fos = new FileOutputStream(filename + ".log");
-                            fos.write(0xEF);
-                            fos.write(0xBB);
-                            fos.write(0xBF);
-                            fos.write(out);
-                            fos.close();
-                        } catch (IOException e) {
-                            printWarning("Could not write log.");
-                        }
-                    }
+                PrintStream verboseLog = openLog(filename, saveLog, compressLog);
+                RandomizationReport report = saveReport ? new RandomizationReport() : null;
+                RandomizationMetrics metrics = saveMetrics ? new RandomizationMetrics() : null;
+                Randomizer randomizer = new Randomizer(settings, romHandler, bundle, saveAsDirectory);
+                randomizer.setReport(report);
+                randomizer.setMetrics(metrics);
+                randomizer.setDryRun(dryRun);
+                randomizer.setSavePatch(savePatch);
+                int checkValue;
+                try {
+                    checkValue = seed == null ? randomizer.randomize(filename, verboseLog)
+                            : randomizer.randomize(filename, verboseLog, seed);
+                } finally {
+                    closeLog(verboseLog, filename);
+                }
+                writeReport(report, filename);
+                writeMetrics(metrics, filename);
+                if (dryRun) {
+                    System.out.printf("Dry run succeeded, check value %08X%n", checkValue);
+                } else {
                     System.out.println("Randomized successfully!");
-                    // this is the only successful exit, everything else will return false at the end of the function
-                    return true;
                 }
+                // this is the only successful exit, everything else will return false at the end of the function
+                return true;
             }
             // if we get here it means no rom handlers matched the ROM file
             System.err.printf(bundle.getString("GUI.unsupportedRom") + "%n", romFileHandler.getName());
@@ -121,6 +104,253 @@ public class CliRandomizer {
         return false;
     }
 
+    private static boolean performBatchRandomization(String settingsFilePath, String sourceRomFilePath,
+                                                     String outputPrefix, boolean saveAsDirectory,
+                                                     String updateFilePath, boolean saveLog, boolean compressLog,
+                                                     boolean saveReport, boolean saveMetrics, boolean dryRun,
+                                                     boolean savePatch, int numberOfSeeds, int startingIndex, int workers,
+                                                     long heapCeiling, Long baseSeed) {
+        Settings settings = readSettings(settingsFilePath);
+        if (settings == null) {
+            return false;
+        }
+
+        try {
+            File romFileHandler = new File(sourceRomFilePath);
+            RomHandler.Factory rhf = findFactory(romFileHandler);
+            if (rhf == null) {
+                System.err.printf(bundle.getString("GUI.unsupportedRom") + "%n", romFileHandler.getName());
+                return false;
+            }
+
+            // Load the first handler up front, so that ROM-dependent warnings are only shown once
+            RomHandler firstHandler = rhf.create(new RandomSource());
+            firstHandler.setDryRun(dryRun);
+            firstHandler.loadRom(romFileHandler.getAbsolutePath());
+            saveAsDirectory = loadGameUpdate(firstHandler, updateFilePath, saveAsDirectory);
+            CliRandomizer.displaySettingsWarnings(settings, firstHandler);
+
+            BatchRandomizer batchRandomizer = new BatchRandomizer(rhf, romFileHandler.getAbsolutePath(),
+                    updateFilePath, settings, bundle, outputPrefix, saveAsDirectory, saveLog, compressLog, saveReport,
+                    saveMetrics, dryRun, savePatch);
+            batchRandomizer.setBaseSeed(baseSeed);
+            int failures = batchRandomizer.randomize(firstHandler, numberOfSeeds, startingIndex, workers,
+                    heapCeiling);
+            if (failures > 0) {
+                printError(failures + " of " + numberOfSeeds + " seeds failed to randomize");
+                return false;
+            }
+            System.out.println((dryRun ? "Dry ran " : "Randomized ") + numberOfSeeds + " seeds successfully!");
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private static boolean performManifestRandomization(String manifestFilePath, String journalFilePath,
+                                                        boolean saveLog, boolean compressLog, boolean saveReport,
+                                                        boolean saveMetrics, boolean savePatch, int workers) {
+        if (journalFilePath == null) {
+            journalFilePath = manifestFilePath + ".journal";
+        }
+        try {
+            ManifestRandomizer manifestRandomizer = new ManifestRandomizer(new File(manifestFilePath),
+                    new File(journalFilePath), saveLog, compressLog, saveReport, saveMetrics, savePatch);
+            int failures = manifestRandomizer.randomize(workers);
+            if (failures > 0) {
+                printError(failures + " manifest rows failed to randomize; run again to retry them");
+                return false;
+            }
+            System.out.println("Randomized all manifest rows successfully!");
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private static boolean performSeedSearch(String settingsFilePath, String sourceRomFilePath,
+                                             String updateFilePath, List<SeedPredicate> predicates, long firstSeed,
+                                             long seedCount, int wantedMatches, int workers) {
+        Settings settings = readSettings(settingsFilePath);
+        if (settings == null) {
+            return false;
+        }
+
+        try {
+            File romFileHandler = new File(sourceRomFilePath);
+            RomHandler.Factory rhf = findFactory(romFileHandler);
+            if (rhf == null) {
+                System.err.printf(bundle.getString("GUI.unsupportedRom") + "%n", romFileHandler.getName());
+                return false;
+            }
+
+            RomHandler baseHandler = rhf.create(new RandomSource());
+            baseHandler.setDryRun(true);
+            baseHandler.loadRom(romFileHandler.getAbsolutePath());
+            loadGameUpdate(baseHandler, updateFilePath, false);
+            CliRandomizer.displaySettingsWarnings(settings, baseHandler);
+
+            SeedSearch seedSearch = new SeedSearch(rhf, baseHandler, settings, bundle, predicates);
+            List<Long> matches = seedSearch.search(firstSeed, seedCount, wantedMatches, workers);
+            disposeRomHandler(baseHandler);
+            for (long seed : matches) {
+                System.out.println(seed);
+            }
+            System.err.println("Found " + matches.size() + " matching seeds in " + seedSearch.getTriedSeeds()
+                    + " tried, starting from seed " + firstSeed);
+            return !matches.isEmpty();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    static Settings readSettings(String settingsFilePath) {
+        try {
+            File fh = new File(settingsFilePath);
+            FileInputStream fis = new FileInputStream(fh);
+            Settings settings = Settings.read(fis);
+            // taken from com.dabomstew.pkrandom.newgui.NewRandomizerGUI.saveROM, set distinctly from all other settings
+            settings.setCustomNames(FileFunctions.getCustomNames());
+            fis.close();
+            return settings;
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    private static boolean performDeterminismCheck(String settingsFilePath, String sourceRomFilePath,
+                                                   String updateFilePath, Long seed, int runs) {
+        Settings settings = readSettings(settingsFilePath);
+        if (settings == null) {
+            return false;
+        }
+
+        File outputDirectory = null;
+        try {
+            File romFileHandler = new File(sourceRomFilePath);
+            RomHandler.Factory rhf = findFactory(romFileHandler);
+            if (rhf == null) {
+                System.err.printf(bundle.getString("GUI.unsupportedRom") + "%n", romFileHandler.getName());
+                return false;
+            }
+
+            RomHandler baseHandler = rhf.create(new RandomSource());
+            baseHandler.loadRom(romFileHandler.getAbsolutePath());
+            boolean saveAsDirectory = loadGameUpdate(baseHandler, updateFilePath, false);
+            CliRandomizer.displaySettingsWarnings(settings, baseHandler);
+
+            if (seed == null) {
+                seed = RandomSource.pickSeed();
+            }
+            System.out.println("Checking seed " + seed + " with " + runs + " sequential and " + runs
+                    + " concurrent runs");
+            outputDirectory = Files.createTempDirectory("upr-determinism").toFile();
+            DeterminismCheck check = new DeterminismCheck(rhf, baseHandler, settings, bundle, saveAsDirectory,
+                    outputDirectory);
+            int mismatches = check.check(seed, runs, runs);
+            disposeRomHandler(baseHandler);
+            if (mismatches > 0) {
+                printError(mismatches + " of " + (2 * runs - 1) + " runs differ from the first");
+                return false;
+            }
+            System.out.println("All runs are identical!");
+            return true;
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (outputDirectory != null) {
+                DeterminismCheck.deleteOutputs(outputDirectory);
+            }
+        }
+        return false;
+    }
+
+    static RomHandler.Factory findFactory(File romFileHandler) {
+        return RomHandler.Factory.findFactory(romFileHandler.getAbsolutePath(), checkHandlers);
+    }
+
+    // Returns whether the game should be saved as a directory, which is forced by loading a game update
+    private static boolean loadGameUpdate(RomHandler romHandler, String updateFilePath, boolean saveAsDirectory) {
+        if (updateFilePath != null && (romHandler.generationOfPokemon() == 6 || romHandler.generationOfPokemon() == 7)) {
+            romHandler.loadGameUpdate(updateFilePath);
+            if (!saveAsDirectory) {
+                printWarning("Forcing save as directory since a game update was supplied.");
+            }
+            saveAsDirectory = true;
+        }
+        if (saveAsDirectory && romHandler.generationOfPokemon() != 6 && romHandler.generationOfPokemon() != 7) {
+            saveAsDirectory = false;
+            printWarning("Saving as directory does not make sense for non-3DS games, ignoring \"-d\" flag...");
+        }
+        return saveAsDirectory;
+    }
+
+    // Deletes the files that DS and 3DS handlers extract while randomizing, once they are done
+    static void disposeRomHandler(RomHandler romHandler) {
+        try {
+            if (romHandler instanceof AbstractDSRomHandler) {
+                ((AbstractDSRomHandler) romHandler).disposeInnerRom();
+            } else if (romHandler instanceof Abstract3DSRomHandler) {
+                ((Abstract3DSRomHandler) romHandler).disposeInnerRom();
+            }
+        } catch (IOException e) {
+            printWarning("Could not delete temporary files of " + romHandler.loadedFilename() + ".");
+        }
+    }
+
+    // Logs are written to disk while randomizing rather than collected in memory first, since
+    // verbose logs of the newer games are several MB for every seed. Returns null when no log
+    // is wanted, so that the randomizer does not build one at all.
+    static PrintStream openLog(String filename, boolean saveLog, boolean compressLog) throws IOException {
+        if (!saveLog) {
+            return null;
+        }
+        OutputStream out = new LogFileOutputStream(filename + (compressLog ? ".log.gz" : ".log"), compressLog);
+        out.write(0xEF);
+        out.write(0xBB);
+        out.write(0xBF);
+        return new PrintStream(out, false, "UTF-8");
+    }
+
+    // PrintStream hides write errors, so they are only reported once the log is complete
+    static void closeLog(PrintStream log, String filename) {
+        if (log == null) {
+            return;
+        }
+        log.close();
+        if (log.checkError()) {
+            printWarning("Could not write log for " + filename + ".");
+        }
+    }
+
+    // Reports are written next to the new ROM, as <new ROM>.json
+    static void writeReport(RandomizationReport report, String filename) {
+        if (report == null) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(filename + ".json")) {
+            report.writeJson(out);
+        } catch (IOException e) {
+            printWarning("Could not write report for " + filename + ".");
+        }
+    }
+
+    // Metrics are written next to the new ROM, as <new ROM>.metrics.csv
+    static void writeMetrics(RandomizationMetrics metrics, String filename) {
+        if (metrics == null) {
+            return;
+        }
+        try (OutputStream out = new FileOutputStream(filename + ".metrics.csv")) {
+            metrics.writeCsv(out);
+        } catch (IOException e) {
+            printWarning("Could not write metrics for " + filename + ".");
+        }
+    }
+
     private static void displaySettingsWarnings(Settings settings, RomHandler romHandler) {
         Settings.TweakForROMFeedback feedback = settings.tweakForRom(romHandler);
         if (feedback.isChangedStarter() && settings.getStartersMod() == Settings.StartersMod.CUSTOM) {
@@ -138,8 +368,27 @@ public class CliRandomizer {
         boolean saveAsDirectory = false;
         String updateFilePath = null;
         boolean saveLog = false;
+        boolean compressLog = false;
+        boolean saveReport = false;
+        boolean saveMetrics = false;
+        boolean dryRun = false;
+        boolean savePatch = false;
+        int numberOfSeeds = 0;
+        int startingIndex = 0;
+        int workers = Runtime.getRuntime().availableProcessors();
+        long heapCeiling = HeapGovernor.defaultCeiling();
+        long contentBudget = ContentStore.getDefaultBudget();
+        String manifestFilePath = null;
+        String journalFilePath = null;
+        Long seed = null;
+        List<SeedPredicate> predicates = new ArrayList<>();
+        int wantedMatches = 1;
+        Long firstSeed = null;
+        Long seedCount = null;
+        int verifyRuns = 0;
 
-        List<String> allowedFlags = Arrays.asList("-i", "-o", "-s", "-d", "-u", "-l", "--help");
+        List<String> allowedFlags = Arrays.asList("-i", "-o", "-s", "-d", "-u", "-l", "-lz", "-r", "-t", "-n", "-patch", "-b", "-bi", "-bw", "-bh", "-cm", "-m",
+                "-j", "-seed", "-p", "-pn", "-ps", "-pc", "-verify", "--help");
         for (int i = 0; i < args.length; i++) {
             if (allowedFlags.contains(args[i])) {
                 switch(args[i]) {
@@ -161,6 +410,81 @@ public class CliRandomizer {
                     case "-l":
                         saveLog = true;
                         break;
+                    case "-lz":
+                        saveLog = true;
+                        compressLog = true;
+                        break;
+                    case "-r":
+                        saveReport = true;
+                        break;
+                    case "-t":
+                        saveMetrics = true;
+                        break;
+                    case "-n":
+                        dryRun = true;
+                        break;
+                    case "-patch":
+                        savePatch = true;
+                        break;
+                    case "-b":
+                        numberOfSeeds = parseNumber(args[i + 1]);
+                        break;
+                    case "-bi":
+                        startingIndex = parseNumber(args[i + 1]);
+                        break;
+                    case "-bw":
+                        workers = parseNumber(args[i + 1]);
+                        break;
+                    case "-bh":
+                        heapCeiling = parseNumber(args[i + 1]) * 1024L * 1024L;
+                        break;
+                    case "-cm":
+                        contentBudget = parseNumber(args[i + 1]) * 1024L * 1024L;
+                        break;
+                    case "-m":
+                        manifestFilePath = args[i + 1];
+                        break;
+                    case "-j":
+                        journalFilePath = args[i + 1];
+                        break;
+                    case "-seed":
+                        seed = parseLong(args[i + 1]);
+                        if (seed == null) {
+                            printError("Invalid seed");
+                            return 1;
+                        }
+                        break;
+                    case "-p":
+                        try {
+                            predicates.add(SeedPredicate.parse(args[i + 1]));
+                        } catch (IllegalArgumentException e) {
+                            printError(e.getMessage());
+                            return 1;
+                        }
+                        break;
+                    case "-pn":
+                        wantedMatches = parseNumber(args[i + 1]);
+                        break;
+                    case "-ps":
+                    case "-pc":
+                        Long value = parseLong(args[i + 1]);
+                        if (value == null) {
+                            printError("Invalid seed search arguments");
+                            return 1;
+                        }
+                        if (args[i].equals("-ps")) {
+                            firstSeed = value;
+                        } else {
+                            seedCount = value;
+                        }
+                        break;
+                    case "-verify":
+                        verifyRuns = parseNumber(args[i + 1]);
+                        if (verifyRuns < 2) {
+                            printError("Invalid number of runs to verify");
+                            return 1;
+                        }
+                        break;
                     case "--help":
                         printUsage();
                         return 0;
@@ -170,6 +494,98 @@ public class CliRandomizer {
             }
         }
 
+        // Every mode below loads ROMs, so the budget has to be in place before any of them runs
+        if (contentBudget < 0) {
+            printError("Invalid content memory budget");
+            CliRandomizer.printUsage();
+            return 1;
+        }
+        ContentStore.setDefaultBudget(contentBudget);
+
+        if (manifestFilePath != null) {
+            if (dryRun) {
+                printError("Dry runs are not supported for manifests");
+                CliRandomizer.printUsage();
+                return 1;
+            }
+            if (workers < 1) {
+                printError("Invalid batch randomization arguments");
+                CliRandomizer.printUsage();
+                return 1;
+            }
+            if (!new File(manifestFilePath).exists()) {
+                printError("Could not read manifest file");
+                CliRandomizer.printUsage();
+                return 1;
+            }
+            if (!CliRandomizer.performManifestRandomization(manifestFilePath, journalFilePath, saveLog, compressLog,
+                    saveReport, saveMetrics, savePatch, workers)) {
+                printError("Randomization failed");
+                return 1;
+            }
+            return 0;
+        }
+
+        if (!predicates.isEmpty()) {
+            // only a search without -ps needs a random start, and picking one is not free
+            if (firstSeed == null) {
+                firstSeed = RandomSource.pickSeed();
+            }
+            if (seedCount == null) {
+                seedCount = firstSeed < 0 ? Long.MAX_VALUE : Long.MAX_VALUE - firstSeed;
+            }
+            if (settingsFilePath == null || sourceRomFilePath == null) {
+                printError("Missing required argument");
+                CliRandomizer.printUsage();
+                return 1;
+            }
+            if (wantedMatches < 1 || seedCount < 1 || workers < 1 || firstSeed > Long.MAX_VALUE - seedCount) {
+                printError("Invalid seed search arguments");
+                CliRandomizer.printUsage();
+                return 1;
+            }
+            if (!new File(settingsFilePath).exists()) {
+                printError("Could not read settings file");
+                CliRandomizer.printUsage();
+                return 1;
+            }
+            if (!new File(sourceRomFilePath).exists()) {
+                printError("Could not read source ROM file");
+                CliRandomizer.printUsage();
+                return 1;
+            }
+            if (!CliRandomizer.performSeedSearch(settingsFilePath, sourceRomFilePath, updateFilePath, predicates,
+                    firstSeed, seedCount, wantedMatches, workers)) {
+                printError("No matching seed found");
+                return 1;
+            }
+            return 0;
+        }
+
+        if (verifyRuns > 0) {
+            if (settingsFilePath == null || sourceRomFilePath == null) {
+                printError("Missing required argument");
+                CliRandomizer.printUsage();
+                return 1;
+            }
+            if (!new File(settingsFilePath).exists()) {
+                printError("Could not read settings file");
+                CliRandomizer.printUsage();
+                return 1;
+            }
+            if (!new File(sourceRomFilePath).exists()) {
+                printError("Could not read source ROM file");
+                CliRandomizer.printUsage();
+                return 1;
+            }
+            if (!CliRandomizer.performDeterminismCheck(settingsFilePath, sourceRomFilePath, updateFilePath, seed,
+                    verifyRuns)) {
+                printError("Determinism check failed");
+                return 1;
+            }
+            return 0;
+        }
+
         if (settingsFilePath == null || sourceRomFilePath == null || outputRomFilePath == null) {
             printError("Missing required argument");
             CliRandomizer.printUsage();
@@ -177,6 +593,18 @@ public class CliRandomizer {
 
         }
 
+        if (savePatch && saveAsDirectory) {
+            printError("Patches cannot be saved as a directory");
+            CliRandomizer.printUsage();
+            return 1;
+        }
+
+        if (numberOfSeeds < 0 || startingIndex < 0 || workers < 1 || heapCeiling < 1) {
+            printError("Invalid batch randomization arguments");
+            CliRandomizer.printUsage();
+            return 1;
+        }
+
         // now we know we have the right number of args...
         if (!new File(settingsFilePath).exists()) {
             printError("Could not read settings file");
@@ -198,14 +626,42 @@ public class CliRandomizer {
             return 1;
         }
 
-        boolean processResult = CliRandomizer.performDirectRandomization(
-                settingsFilePath,
-                sourceRomFilePath,
-                outputRomFilePath,
-                saveAsDirectory,
-                updateFilePath,
-                saveLog
-        );
+        boolean processResult;
+        if (numberOfSeeds > 0) {
+            processResult = CliRandomizer.performBatchRandomization(
+                    settingsFilePath,
+                    sourceRomFilePath,
+                    outputRomFilePath,
+                    saveAsDirectory,
+                    updateFilePath,
+                    saveLog,
+                    compressLog,
+                    saveReport,
+                    saveMetrics,
+                    dryRun,
+                    savePatch,
+                    numberOfSeeds,
+                    startingIndex,
+                    workers,
+                    heapCeiling,
+                    seed
+            );
+        } else {
+            processResult = CliRandomizer.performDirectRandomization(
+                    settingsFilePath,
+                    sourceRomFilePath,
+                    outputRomFilePath,
+                    saveAsDirectory,
+                    updateFilePath,
+                    saveLog,
+                    compressLog,
+                    saveReport,
+                    saveMetrics,
+                    dryRun,
+                    savePatch,
+                    seed
+            );
+        }
         if (!processResult) {
             printError("Randomization failed");
             CliRandomizer.printUsage();
@@ -214,17 +670,65 @@ public class CliRandomizer {
         return 0;
     }
 
-    private static void printError(String text) {
+    // invalid numbers are mapped to -1 so that they are caught by the argument checks
+    static int parseNumber(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // seeds can be any long, so there is no invalid value to map to; null is returned instead
+    static Long parseLong(String text) {
+        try {
+            return Long.parseLong(text);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    static void printError(String text) {
         System.err.println("ERROR: " + text);
     }
 
-    private static void printWarning(String text) {
+    static void printWarning(String text) {
         System.err.println("WARNING: " + text);
     }
 
     private static void printUsage() {
         System.err.println("Usage: java [-Xmx4096M] -jar PokeRandoZX.jar cli -s <path to settings file> " +
-                "-i <path to source ROM> -o <path for new ROM> [-d][-u <path to 3DS game update>][-l]");
+                "-i <path to source ROM> -o <path for new ROM> [-d][-u <path to 3DS game update>][-l|-lz][-r][-t][-n][-patch]" +
+                "[-cm <content memory in MB>]" +
+                "[-seed <seed>][-b <number of seeds> [-bi <starting index>][-bw <number of workers>][-bh <heap ceiling in MB>]]");
+        System.err.println("       java [-Xmx4096M] -jar PokeRandoZX.jar cli -m <path to manifest> " +
+                "[-j <path to journal>][-bw <number of workers>][-l|-lz][-r][-t][-patch]");
+        System.err.println("       java [-Xmx4096M] -jar PokeRandoZX.jar cli -s <path to settings file> " +
+                "-i <path to source ROM> -p <predicate> [-p <predicate>...][-pn <matches>][-ps <first seed>]" +
+                "[-pc <number of seeds>][-bw <number of workers>]");
+        System.err.println("       java [-Xmx4096M] -jar PokeRandoZX.jar cli -s <path to settings file> " +
+                "-i <path to source ROM> -verify <number of runs> [-u <path to 3DS game update>][-seed <seed>]");
         System.err.println("-d: Save 3DS game as directory (LayeredFS)");
+        System.err.println("-lz: Save the log gzipped, as <new ROM>.log.gz");
+        System.err.println("-r: Save a JSON report of all changes, as <new ROM>.json");
+        System.err.println("-t: Time each phase of the randomization, in the log and as <new ROM>.metrics.csv");
+        System.err.println("-n: Dry run; randomize without saving the new ROM, and print its check value");
+        System.err.println("-patch: Save a patch against the source ROM instead of the new ROM; BPS for GB, GBA " +
+                "and DS games, and a zipped LayeredFS directory of the changed files for 3DS games");
+        System.err.println("-b: Batch randomize; -o is used as a prefix, followed by the index of each seed");
+        System.err.println("-bw: Number of seeds to randomize at once (defaults to the number of processors)");
+        System.err.println("-bh: Run fewer seeds at once when they would use more heap than this " +
+                "(defaults to 90% of the maximum heap)");
+        System.err.println("-cm: Memory each DS or 3DS game keeps its extracted files in before it moves them " +
+                "to temp files (defaults to 256 MB)");
+        System.err.println("-m: Randomize every row of a CSV (rom,settings,seed,output) or JSON Lines manifest");
+        System.err.println("-seed: Randomize with the given seed, e.g. one found by a seed search; with -b, the ROM " +
+                "with index i uses this seed plus i");
+        System.err.println("-p: Search for seeds where starter=NAME, tmNN=MOVE, wild=NAME, static=NAME or " +
+                "nowildlegendaries holds");
+        System.err.println("-pn: Number of matching seeds to find (defaults to 1); -ps and -pc bound the seeds tried");
+        System.err.println("-verify: Randomize the same seed the given number of times, one after another and " +
+                "then all at once, and report the first difference in check value, log or output");
+        System.err.println("-j: Journal of completed manifest rows, used to resume (defaults to <manifest>.journal)");
     }
 }
@@ -0,0 +1,299 @@
+package com.dabomstew.pkrandom.cli;
+
+/*----------------------------------------------------------------------------*/
+/*--  DeterminismCheck.java - randomizes the same ROM, settings and seed    --*/
+/*--                          several times, one after another and all at   --*/
+/*--                          once, and reports any difference in output.   --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import com.dabomstew.pkrandom.CustomNamesSet;
+import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.Randomizer;
+import com.dabomstew.pkrandom.Settings;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// The first run uses the handler that loaded the ROM, like the first seed of a batch, and is the
+// reference every other run is compared against. The sequential runs show whether the output
+// depends on what ran earlier in the JVM; the concurrent runs, which all wait for each other
+// before they start, show whether it depends on scheduling. Every run forks the loaded handler,
+// so they share the original ROM data just like the seeds of a batch do.
+public class DeterminismCheck {
+
+    private final RomHandler.Factory factory;
+    private final RomHandler baseHandler;
+    private final String settingsString;
+    private final CustomNamesSet customNames;
+    private final ResourceBundle bundle;
+    private final boolean saveAsDirectory;
+    private final File outputDirectory;
+
+    private Run reference;
+
+    public DeterminismCheck(RomHandler.Factory factory, RomHandler baseHandler, Settings settings,
+                            ResourceBundle bundle, boolean saveAsDirectory, File outputDirectory) {
+        this.factory = factory;
+        this.baseHandler = baseHandler;
+        // Settings are tweaked per ROM handler, so every run gets its own copy
+        this.settingsString = settings.toString();
+        this.customNames = settings.getCustomNames();
+        this.bundle = bundle;
+        this.saveAsDirectory = saveAsDirectory;
+        this.outputDirectory = outputDirectory;
+    }
+
+    /**
+     * Randomizes the ROM with the given seed sequentialRuns times one after another, then
+     * concurrentRuns times all at once, and compares every run against the first.
+     *
+     * @return The number of runs that differ from the first, or failed
+     */
+    public int check(long seed, int sequentialRuns, int concurrentRuns) throws IOException {
+        int mismatches = 0;
+        for (int i = 0; i < sequentialRuns; i++) {
+            Run run = randomize("sequential" + i, seed, i != 0);
+            if (reference == null) {
+                reference = run;
+                System.out.printf("Reference run: check value %08X%n", run.checkValue);
+            } else if (!compare(run)) {
+                mismatches++;
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, concurrentRuns));
+        CountDownLatch start = new CountDownLatch(concurrentRuns);
+        List<Future<Run>> results = new ArrayList<>();
+        for (int i = 0; i < concurrentRuns; i++) {
+            final String name = "concurrent" + i;
+            results.add(executor.submit(() -> {
+                start.countDown();
+                start.await();
+                return randomize(name, seed, true);
+            }));
+        }
+        executor.shutdown();
+        for (Future<Run> result : results) {
+            try {
+                Run run = result.get();
+                if (reference == null) {
+                    reference = run;
+                } else if (!compare(run)) {
+                    mismatches++;
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                CliRandomizer.printError("A concurrent run failed");
+                e.printStackTrace();
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private Run randomize(String name, long seed, boolean fork) throws IOException {
+        RomHandler romHandler = fork ? forkRomHandler() : baseHandler;
+        try {
+            String filename = new File(outputDirectory, name).getAbsolutePath();
+            if (saveAsDirectory) {
+                new File(filename).mkdirs();
+            } else {
+                filename += "." + romHandler.getDefaultExtension();
+            }
+
+            Settings settings = Settings.fromString(settingsString);
+            settings.setCustomNames(customNames);
+            settings.tweakForRom(romHandler);
+
+            ByteArrayOutputStream log = new ByteArrayOutputStream();
+            PrintStream logStream = new PrintStream(log, false, "UTF-8");
+            Randomizer randomizer = new Randomizer(settings, romHandler, bundle, saveAsDirectory);
+            int checkValue = randomizer.randomize(filename, logStream, seed);
+            logStream.close();
+            return new Run(name, checkValue, new String(log.toByteArray(), StandardCharsets.UTF_8), new File(filename));
+        } finally {
+            if (fork) {
+                CliRandomizer.disposeRomHandler(romHandler);
+            }
+        }
+    }
+
+    private RomHandler forkRomHandler() {
+        RomHandler romHandler = factory.create(new RandomSource());
+        if (!romHandler.loadRomFrom(baseHandler)) {
+            romHandler.loadRom(baseHandler.loadedFilename());
+        }
+        return romHandler;
+    }
+
+    private boolean compare(Run run) throws IOException {
+        if (run.checkValue != reference.checkValue) {
+            report(run, String.format("check value %08X instead of %08X", run.checkValue, reference.checkValue));
+            return false;
+        }
+        String logDifference = compareLogs(reference.log, run.log);
+        if (logDifference != null) {
+            report(run, logDifference);
+            return false;
+        }
+        String outputDifference = compareOutputs(reference.output.toPath(), run.output.toPath());
+        if (outputDifference != null) {
+            report(run, outputDifference);
+            return false;
+        }
+        System.out.println(run.name + ": identical");
+        return true;
+    }
+
+    private static void report(Run run, String difference) {
+        System.out.println(run.name + ": " + difference);
+    }
+
+    // The time elapsed is the only line of the log that is expected to differ
+    private static String compareLogs(String expected, String actual) {
+        String[] expectedLines = expected.split("\r?\n", -1);
+        String[] actualLines = actual.split("\r?\n", -1);
+        for (int i = 0; i < Math.min(expectedLines.length, actualLines.length); i++) {
+            if (!expectedLines[i].equals(actualLines[i]) && !expectedLines[i].startsWith("Time elapsed:")) {
+                return String.format("log line %d is \"%s\" instead of \"%s\"", i + 1, actualLines[i],
+                        expectedLines[i]);
+            }
+        }
+        if (expectedLines.length != actualLines.length) {
+            return String.format("log has %d lines instead of %d", actualLines.length, expectedLines.length);
+        }
+        return null;
+    }
+
+    private static String compareOutputs(Path expected, Path actual) throws IOException {
+        if (!Files.isDirectory(expected)) {
+            String difference = compareFiles(expected, actual);
+            return difference == null ? null : "output " + difference;
+        }
+        List<Path> expectedFiles = listFiles(expected);
+        List<Path> actualFiles = listFiles(actual);
+        if (!expectedFiles.equals(actualFiles)) {
+            List<Path> missing = new ArrayList<>(expectedFiles);
+            missing.removeAll(actualFiles);
+            List<Path> extra = new ArrayList<>(actualFiles);
+            extra.removeAll(expectedFiles);
+            return "output directory is missing " + missing + " and has extra " + extra;
+        }
+        for (Path file : expectedFiles) {
+            String difference = compareFiles(expected.resolve(file), actual.resolve(file));
+            if (difference != null) {
+                return file + ": " + difference;
+            }
+        }
+        return null;
+    }
+
+    private static List<Path> listFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile)
+                    .map(directory::relativize)
+                    .sorted(Comparator.comparing(Path::toString))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static String compareFiles(Path expected, Path actual) throws IOException {
+        try (FileChannel expectedChannel = FileChannel.open(expected, StandardOpenOption.READ);
+             FileChannel actualChannel = FileChannel.open(actual, StandardOpenOption.READ)) {
+            ByteBuffer expectedBytes = expectedChannel.map(FileChannel.MapMode.READ_ONLY, 0, expectedChannel.size());
+            ByteBuffer actualBytes = actualChannel.map(FileChannel.MapMode.READ_ONLY, 0, actualChannel.size());
+            int start = mismatch(expectedBytes, actualBytes);
+            if (start < 0) {
+                return null;
+            }
+            int length = Math.min(expectedBytes.limit(), actualBytes.limit());
+            if (start == length) {
+                return String.format("is %d bytes instead of %d", actualBytes.limit(), expectedBytes.limit());
+            }
+            int end = start;
+            while (end < length && expectedBytes.get(end) != actualBytes.get(end)) {
+                end++;
+            }
+            return String.format("bytes 0x%X-0x%X differ", start, end - 1);
+        }
+    }
+
+    // Same result as ByteBuffer.mismatch, which Java 8 doesn't have: -1 if both are equal, the
+    // first differing index otherwise, or the shorter length if one is a prefix of the other
+    private static int mismatch(ByteBuffer expected, ByteBuffer actual) {
+        int length = Math.min(expected.limit(), actual.limit());
+        int i = 0;
+        // both are mapped with the same byte order, so equal longs mean equal bytes
+        while (i + 8 <= length && expected.getLong(i) == actual.getLong(i)) {
+            i += 8;
+        }
+        while (i < length && expected.get(i) == actual.get(i)) {
+            i++;
+        }
+        if (i == length && expected.limit() == actual.limit()) {
+            return -1;
+        }
+        return i;
+    }
+
+    // Outputs of 3DS games saved as a directory have subfolders, so this deletes the whole tree
+    static void deleteOutputs(File outputDirectory) {
+        try (Stream<Path> files = Files.walk(outputDirectory.toPath())) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            CliRandomizer.printWarning("Could not delete " + outputDirectory + ".");
+        }
+    }
+
+    private static class Run {
+        private final String name;
+        private final int checkValue;
+        private final String log;
+        private final File output;
+
+        private Run(String name, int checkValue, String log, File output) {
+            this.name = name;
+            this.checkValue = checkValue;
+            this.log = log;
+            this.output = output;
+        }
+    }
+}
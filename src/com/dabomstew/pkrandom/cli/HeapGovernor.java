@@ -0,0 +1,110 @@
+package com.dabomstew.pkrandom.cli;
+
+/*----------------------------------------------------------------------------*/
+/*--  HeapGovernor.java - limits how many seeds are randomized at once, so  --*/
+/*--                      that they stay under a heap ceiling.              --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+// The memory a seed needs is first guessed from the generation of the game, then learned from
+// the heap in use whenever a seed finishes, averaged over the seeds in flight at that moment.
+// The limit is the number of seeds that fit between the heap in use before the batch started and
+// the ceiling, at most the number of workers and at least one. A seed also waits while the heap
+// in use leaves no room for it, until other seeds finish or the garbage collector catches up.
+public class HeapGovernor {
+
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private static final long MB = 1024 * 1024;
+
+    private final long ceiling;
+    private final int maxInFlight;
+    private final long baseline;
+    private long estimate;
+    private int inFlight;
+    private int limit;
+
+    public HeapGovernor(long ceiling, int maxInFlight, long initialEstimate) {
+        this.ceiling = ceiling;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.baseline = usedHeap();
+        this.estimate = initialEstimate;
+        updateLimit();
+    }
+
+    public static long defaultCeiling() {
+        return Runtime.getRuntime().maxMemory() / 10 * 9;
+    }
+
+    // Rough peak heap use of one randomization, for before any seed has finished
+    public static long initialEstimate(int generation) {
+        switch (generation) {
+            case 1:
+            case 2:
+                return 16 * MB;
+            case 3:
+                return 64 * MB;
+            case 4:
+                return 192 * MB;
+            case 5:
+                return 256 * MB;
+            case 6:
+                return 768 * MB;
+            default:
+                return 1024 * MB;
+        }
+    }
+
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight > 0 && (inFlight >= limit || usedHeap() + estimate > ceiling)) {
+            // the heap in use only goes down without notice, so check it again now and then
+            wait(100);
+        }
+        inFlight++;
+    }
+
+    public synchronized void release() {
+        long sample = Math.max(0, usedHeap() - baseline) / inFlight;
+        estimate = (estimate + sample) / 2;
+        inFlight--;
+        updateLimit();
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized long getEstimate() {
+        return estimate;
+    }
+
+    private void updateLimit() {
+        long available = ceiling - baseline;
+        limit = (int) Math.max(1, Math.min(maxInFlight, available / Math.max(estimate, 1)));
+    }
+
+    private static long usedHeap() {
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
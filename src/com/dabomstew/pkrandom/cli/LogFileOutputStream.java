@@ -0,0 +1,164 @@
+package com.dabomstew.pkrandom.cli;
+
+/*----------------------------------------------------------------------------*/
+/*--  LogFileOutputStream.java - writes randomization logs to disk as they  --*/
+/*--                             are produced, on a background thread.      --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+// The randomizer fills chunks of the log, which a writer thread writes (and optionally gzips) to
+// the file. At most a few chunks are held at once: if the disk cannot keep up, the randomizer
+// waits for the writer instead of the log piling up on the heap.
+public class LogFileOutputStream extends OutputStream {
+
+    private static final int chunkSize = 64 * 1024;
+    private static final int maxQueuedChunks = 4;
+    private static final byte[] endOfLog = new byte[0];
+
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(maxQueuedChunks);
+    private final Thread writer;
+    private volatile IOException writeError;
+    private byte[] chunk = new byte[chunkSize];
+    private int chunkLength;
+    private boolean closed;
+
+    public LogFileOutputStream(String filename, boolean compress) throws IOException {
+        OutputStream file = new BufferedOutputStream(new FileOutputStream(filename), chunkSize);
+        OutputStream out = compress ? new GZIPOutputStream(file, chunkSize) : file;
+        writer = new Thread(() -> writeChunks(out), "log writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // After a write error the rest of the log is dropped, but the writer keeps taking chunks off
+    // the queue, so that the randomizer and close() never wait on a writer that has given up
+    private void writeChunks(OutputStream out) {
+        try {
+            byte[] next;
+            while ((next = queue.take()) != endOfLog) {
+                if (writeError == null) {
+                    try {
+                        out.write(next);
+                    } catch (IOException e) {
+                        writeError = e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            writeError = new IOException(e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                if (writeError == null) {
+                    writeError = e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (chunkLength == chunkSize) {
+            flushChunk();
+        }
+        chunk[chunkLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (chunkLength == chunkSize) {
+                flushChunk();
+            }
+            int copied = Math.min(len, chunkSize - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, copied);
+            chunkLength += copied;
+            off += copied;
+            len -= copied;
+        }
+    }
+
+    private void flushChunk() throws IOException {
+        checkWriteError();
+        if (chunkLength == 0) {
+            return;
+        }
+        byte[] full = chunk;
+        if (chunkLength < chunkSize) {
+            full = new byte[chunkLength];
+            System.arraycopy(chunk, 0, full, 0, chunkLength);
+        } else {
+            chunk = new byte[chunkSize];
+        }
+        chunkLength = 0;
+        enqueue(full);
+    }
+
+    private void enqueue(byte[] data) throws IOException {
+        try {
+            queue.put(data);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private void checkWriteError() throws IOException {
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    // Partial chunks are only handed to the writer on close, since the log is only read once it is complete
+    @Override
+    public void flush() throws IOException {
+        checkWriteError();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (writeError == null) {
+            flushChunk();
+        }
+        enqueue(endOfLog);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        chunk = null;
+        checkWriteError();
+    }
+}
@@ -0,0 +1,425 @@
+package com.dabomstew.pkrandom.cli;
+
+/*----------------------------------------------------------------------------*/
+/*--  ManifestRandomizer.java - randomizes every row of a manifest in one   --*/
+/*--                            JVM, journaling rows as they complete.      --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.RandomizationMetrics;
+import com.dabomstew.pkrandom.RandomizationReport;
+import com.dabomstew.pkrandom.Randomizer;
+import com.dabomstew.pkrandom.Settings;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// A manifest is either CSV, with the columns rom,settings,seed,output and an optional header row,
+// or JSON Lines, with one {"rom": ..., "settings": ..., "seed": ..., "output": ...} object per
+// line. An empty seed picks a random one.
+//
+// The number of every completed row is appended to the journal, and rows that are already in the
+// journal are skipped, so a job that was stopped picks up where it left off when it is run again.
+// Each source ROM is only loaded once; every row that uses it works on a fork of that handler,
+// which is let go of as soon as the last of those rows is done.
+public class ManifestRandomizer {
+
+    private final File manifestFile;
+    private final File journalFile;
+    private final boolean saveLog;
+    private final boolean compressLog;
+    private final boolean saveReport;
+    private final boolean saveMetrics;
+    private final boolean savePatch;
+
+    private final ConcurrentHashMap<String, BaseRom> baseRoms = new ConcurrentHashMap<>();
+    private FileOutputStream journal;
+
+    // The first row to need the handler loads it, and rows of the same ROM wait for that load
+    // while rows of other ROMs carry on
+    private static class BaseRom {
+        private final FutureTask<RomHandler> handler;
+        private final AtomicInteger pendingRows = new AtomicInteger();
+
+        private BaseRom(String romPath) {
+            handler = new FutureTask<>(() -> {
+                RomHandler.Factory factory = CliRandomizer.findFactory(new File(romPath));
+                if (factory == null) {
+                    return null;
+                }
+                RomHandler baseHandler = factory.create(new RandomSource());
+                return baseHandler.loadRom(romPath) ? baseHandler : null;
+            });
+        }
+    }
+
+    private static class Row {
+        private int number;
+        private String romPath;
+        private String settingsPath;
+        private String seed;
+        private String outputPath;
+    }
+
+    public ManifestRandomizer(File manifestFile, File journalFile, boolean saveLog, boolean compressLog,
+                              boolean saveReport, boolean saveMetrics, boolean savePatch) {
+        this.manifestFile = manifestFile;
+        this.journalFile = journalFile;
+        this.saveLog = saveLog;
+        this.compressLog = compressLog;
+        this.saveReport = saveReport;
+        this.saveMetrics = saveMetrics;
+        this.savePatch = savePatch;
+    }
+
+    /**
+     * Randomizes every row of the manifest that is not in the journal yet.
+     *
+     * @return The number of rows that failed to randomize
+     */
+    public int randomize(int workers) throws IOException {
+        List<Row> rows = readManifest();
+        Set<Integer> completedRows = readJournal();
+        List<Row> pendingRows = new ArrayList<>();
+        for (Row row : rows) {
+            if (!completedRows.contains(row.number)) {
+                pendingRows.add(row);
+            }
+        }
+        if (pendingRows.size() < rows.size()) {
+            System.out.printf("Resuming: %d of %d rows were already completed%n",
+                    rows.size() - pendingRows.size(), rows.size());
+        }
+        if (pendingRows.isEmpty()) {
+            return 0;
+        }
+
+        for (Row row : pendingRows) {
+            baseRoms.computeIfAbsent(baseRomKey(row), BaseRom::new).pendingRows.incrementAndGet();
+        }
+        journal = new FileOutputStream(journalFile, true);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, pendingRows.size())));
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (Row row : pendingRows) {
+            results.add(executor.submit(() -> randomizeRow(row)));
+        }
+        executor.shutdown();
+
+        int failures = 0;
+        for (Future<Boolean> result : results) {
+            try {
+                if (!result.get()) {
+                    failures++;
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                failures++;
+            }
+        }
+        journal.close();
+        return failures;
+    }
+
+    private boolean randomizeRow(Row row) {
+        RomHandler romHandler = null;
+        try {
+            if (!new File(row.romPath).isFile()) {
+                CliRandomizer.printError("Row " + row.number + ": could not read source ROM " + row.romPath);
+                return false;
+            }
+            RomHandler baseHandler = getBaseHandler(row);
+            if (baseHandler == null) {
+                CliRandomizer.printError("Row " + row.number + ": unsupported ROM " + row.romPath);
+                return false;
+            }
+            Settings settings = CliRandomizer.readSettings(row.settingsPath);
+            if (settings == null) {
+                CliRandomizer.printError("Row " + row.number + ": could not read settings file " + row.settingsPath);
+                return false;
+            }
+            long seed = row.seed.isEmpty() ? RandomSource.pickSeed() : Long.parseLong(row.seed);
+
+            romHandler = CliRandomizer.findFactory(new File(row.romPath)).create(new RandomSource());
+            if (!romHandler.loadRomFrom(baseHandler) && !romHandler.loadRom(baseRomKey(row))) {
+                CliRandomizer.printError("Row " + row.number + ": could not load source ROM " + row.romPath);
+                return false;
+            }
+            settings.tweakForRom(romHandler);
+            File outputFile = FileFunctions.fixFilename(new File(row.outputPath),
+                    savePatch ? romHandler.getPatchExtension() : romHandler.getDefaultExtension());
+            if (outputFile.getAbsoluteFile().equals(new File(row.romPath).getAbsoluteFile())) {
+                CliRandomizer.printError("Row " + row.number + ": output would overwrite the source ROM");
+                return false;
+            }
+            String filename = outputFile.getAbsolutePath();
+
+            PrintStream log = CliRandomizer.openLog(filename, saveLog, compressLog);
+            RandomizationReport report = saveReport ? new RandomizationReport() : null;
+            RandomizationMetrics metrics = saveMetrics ? new RandomizationMetrics() : null;
+            Randomizer randomizer = new Randomizer(settings, romHandler, CliRandomizer.bundle, false);
+            randomizer.setReport(report);
+            randomizer.setMetrics(metrics);
+            randomizer.setSavePatch(savePatch);
+            try {
+                randomizer.randomize(filename, log, seed);
+            } finally {
+                CliRandomizer.closeLog(log, filename);
+            }
+            CliRandomizer.writeReport(report, filename);
+            CliRandomizer.writeMetrics(metrics, filename);
+            completeRow(row, filename);
+            System.out.printf("Row %d: randomized %s%n", row.number, filename);
+            return true;
+        } catch (Exception e) {
+            CliRandomizer.printError("Row " + row.number + ": randomization failed");
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (romHandler != null) {
+                CliRandomizer.disposeRomHandler(romHandler);
+            }
+            releaseBaseHandler(row);
+        }
+    }
+
+    private static String baseRomKey(Row row) {
+        return new File(row.romPath).getAbsolutePath();
+    }
+
+    // The base handlers themselves are never randomized, rows only ever work on forks of them
+    private RomHandler getBaseHandler(Row row) throws InterruptedException, ExecutionException {
+        FutureTask<RomHandler> handler = baseRoms.get(baseRomKey(row)).handler;
+        // does nothing if another row already loaded it, or is loading it right now
+        handler.run();
+        return handler.get();
+    }
+
+    private void releaseBaseHandler(Row row) {
+        String key = baseRomKey(row);
+        BaseRom baseRom = baseRoms.get(key);
+        if (baseRom.pendingRows.decrementAndGet() > 0) {
+            return;
+        }
+        baseRoms.remove(key);
+        try {
+            // it was never loaded if every row of the ROM failed before getting to it
+            if (baseRom.handler.isDone() && baseRom.handler.get() != null) {
+                CliRandomizer.disposeRomHandler(baseRom.handler.get());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            // failed to load, so there is nothing to dispose of
+        }
+    }
+
+    // Rows are only journaled once their output has been written completely
+    private synchronized void completeRow(Row row, String filename) throws IOException {
+        journal.write((row.number + "\t" + filename + "\n").getBytes(StandardCharsets.UTF_8));
+        journal.flush();
+        journal.getFD().sync();
+    }
+
+    private Set<Integer> readJournal() throws IOException {
+        Set<Integer> completedRows = new HashSet<>();
+        if (!journalFile.exists()) {
+            return completedRows;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int split = line.indexOf('\t');
+                // a line cut short by a crash has no tab yet, so it is ignored
+                if (split > 0) {
+                    completedRows.add(Integer.parseInt(line.substring(0, split)));
+                }
+            }
+        }
+        return completedRows;
+    }
+
+    private List<Row> readManifest() throws IOException {
+        boolean jsonLines = manifestFile.getName().toLowerCase().endsWith(".jsonl")
+                || manifestFile.getName().toLowerCase().endsWith(".json");
+        List<Row> rows = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile),
+                StandardCharsets.UTF_8))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                Row row = new Row();
+                row.number = lineNumber;
+                if (jsonLines) {
+                    Map<String, String> values = parseJsonObject(line, lineNumber);
+                    row.romPath = values.get("rom");
+                    row.settingsPath = values.get("settings");
+                    row.seed = values.getOrDefault("seed", "");
+                    row.outputPath = values.get("output");
+                } else {
+                    List<String> values = parseCsvLine(line);
+                    if (lineNumber == 1 && values.size() > 2 && values.get(2).trim().equalsIgnoreCase("seed")) {
+                        // header row
+                        continue;
+                    }
+                    if (values.size() != 4) {
+                        throw new IOException("Manifest line " + lineNumber + " does not have 4 columns");
+                    }
+                    row.romPath = values.get(0);
+                    row.settingsPath = values.get(1);
+                    row.seed = values.get(2);
+                    row.outputPath = values.get(3);
+                }
+                if (row.romPath == null || row.settingsPath == null || row.outputPath == null) {
+                    throw new IOException("Manifest line " + lineNumber + " is missing rom, settings or output");
+                }
+                row.seed = row.seed.trim();
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private static List<String> parseCsvLine(String line) {
+        List<String> values = new ArrayList<>();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    value.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    value.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                values.add(value.toString());
+                value.setLength(0);
+            } else {
+                value.append(c);
+            }
+        }
+        values.add(value.toString());
+        return values;
+    }
+
+    // Only flat objects of strings and numbers are needed for manifests
+    private static Map<String, String> parseJsonObject(String line, int lineNumber) throws IOException {
+        Map<String, String> values = new HashMap<>();
+        String text = line.trim();
+        if (!text.startsWith("{") || !text.endsWith("}")) {
+            throw new IOException("Manifest line " + lineNumber + " is not a JSON object");
+        }
+        int i = 1;
+        int end = text.length() - 1;
+        while (i < end) {
+            char c = text.charAt(i);
+            if (Character.isWhitespace(c) || c == ',') {
+                i++;
+                continue;
+            }
+            StringBuilder key = new StringBuilder();
+            i = readJsonString(text, i, key, lineNumber);
+            while (i < end && (Character.isWhitespace(text.charAt(i)) || text.charAt(i) == ':')) {
+                i++;
+            }
+            StringBuilder value = new StringBuilder();
+            if (i < end && text.charAt(i) == '"') {
+                i = readJsonString(text, i, value, lineNumber);
+            } else {
+                while (i < end && text.charAt(i) != ',' && !Character.isWhitespace(text.charAt(i))) {
+                    value.append(text.charAt(i++));
+                }
+                if (value.toString().equals("null")) {
+                    value.setLength(0);
+                }
+            }
+            values.put(key.toString(), value.toString());
+        }
+        return values;
+    }
+
+    private static int readJsonString(String text, int start, StringBuilder out, int lineNumber) throws IOException {
+        if (text.charAt(start) != '"') {
+            throw new IOException("Manifest line " + lineNumber + " is not valid JSON");
+        }
+        int i = start + 1;
+        while (i < text.length()) {
+            char c = text.charAt(i++);
+            if (c == '"') {
+                return i;
+            }
+            if (c == '\\' && i < text.length()) {
+                char escaped = text.charAt(i++);
+                switch (escaped) {
+                    case 'n':
+                        out.append('\n');
+                        break;
+                    case 't':
+                        out.append('\t');
+                        break;
+                    case 'r':
+                        out.append('\r');
+                        break;
+                    case 'u':
+                        out.append((char) Integer.parseInt(text.substring(i, i + 4), 16));
+                        i += 4;
+                        break;
+                    default:
+                        out.append(escaped);
+                        break;
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        throw new IOException("Manifest line " + lineNumber + " has an unterminated string");
+    }
+}
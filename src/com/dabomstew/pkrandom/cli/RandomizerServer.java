@@ -0,0 +1,407 @@
+package com.dabomstew.pkrandom.cli;
+
+/*----------------------------------------------------------------------------*/
+/*--  RandomizerServer.java - a long-running randomizer that serves         --*/
+/*--                          requests over a localhost HTTP API.           --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import com.dabomstew.pkrandom.CustomNamesSet;
+import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.Randomizer;
+import com.dabomstew.pkrandom.Settings;
+import com.dabomstew.pkrandom.SettingsUpdater;
+import com.dabomstew.pkrandom.Version;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Keeps the JVM, the ROM handler classes and one loaded base handler per ROM warm between
+// requests, so that a request only costs forking the base handler, randomizing and saving.
+//
+// API (localhost only):
+//   GET  /roms                              lists the ids of the ROMs that can be randomized
+//   POST /randomize?rom=<id>[&seed=<seed>]  body is a settings string; responds with a zip that
+//                                           holds the randomized ROM and its log
+public class RandomizerServer {
+
+    private final File romDirectory;
+    private final CustomNamesSet customNames;
+    private final ThreadPoolExecutor workers;
+    private final Map<String, LoadedRom> loadedRoms = new ConcurrentHashMap<>();
+    private HttpServer server;
+
+    private static class LoadedRom {
+        private RomHandler.Factory factory;
+        private String romPath;
+        private RomHandler baseHandler;
+    }
+
+    private static class RequestException extends Exception {
+        private static final long serialVersionUID = 4821569802348651207L;
+        private final int status;
+
+        private RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    public RandomizerServer(File romDirectory, CustomNamesSet customNames, int workerCount, int queueSize) {
+        this.romDirectory = romDirectory;
+        this.customNames = customNames;
+        // Requests beyond the queue are turned away rather than piling up
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize));
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/roms", this::handleRoms);
+        server.createContext("/randomize", this::handleRandomize);
+        // Exchanges only parse their request and wait; randomizing and saving the ROM into the
+        // response both happen on the worker pool, which bounds the actual work
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        workers.shutdown();
+    }
+
+    private void handleRoms(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("GET")) {
+            sendText(exchange, 405, "Use GET");
+            return;
+        }
+        StringBuilder roms = new StringBuilder();
+        for (String romId : listRoms()) {
+            roms.append(romId).append('\n');
+        }
+        sendText(exchange, 200, roms.toString());
+    }
+
+    private void handleRandomize(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                throw new RequestException(405, "Use POST");
+            }
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String romId = query.get("rom");
+            if (romId == null) {
+                throw new RequestException(400, "Missing rom parameter");
+            }
+            long seed;
+            try {
+                seed = query.containsKey("seed") ? Long.parseLong(query.get("seed")) : RandomSource.pickSeed();
+            } catch (NumberFormatException e) {
+                throw new RequestException(400, "Invalid seed");
+            }
+            String settingsString = new String(readBody(exchange), StandardCharsets.UTF_8).trim();
+            Settings settings = parseSettings(settingsString);
+            LoadedRom loadedRom = getLoadedRom(romId);
+            String baseName = romId.contains(".") ? romId.substring(0, romId.lastIndexOf('.')) : romId;
+
+            Future<?> future;
+            try {
+                future = workers.submit(() -> {
+                    respond(exchange, randomize(loadedRom, settings, seed), baseName + "_" + seed);
+                    return null;
+                });
+            } catch (RejectedExecutionException e) {
+                throw new RequestException(503, "Too many queued requests");
+            }
+            try {
+                future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                throw new RequestException(500, "Randomization failed");
+            }
+        } catch (RequestException e) {
+            sendText(exchange, e.status, e.getMessage());
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            sendText(exchange, 500, "Randomization failed");
+        }
+    }
+
+    private static class Result {
+        private RomHandler romHandler;
+        private byte[] log;
+        private String extension;
+        private long seed;
+        private int checkValue;
+    }
+
+    // Runs on the worker pool too, as saving a ROM can take as long as randomizing it. Once the
+    // headers are out a status can no longer be sent, so a failure past them only closes the
+    // exchange, which the client sees as a cut off response.
+    private void respond(HttpExchange exchange, Result result, String outputName) throws IOException {
+        outputName += "." + result.extension;
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "application/zip");
+            exchange.getResponseHeaders().set("X-Seed", Long.toString(result.seed));
+            exchange.getResponseHeaders().set("X-Check-Value", String.format("%08X", result.checkValue));
+            exchange.sendResponseHeaders(200, 0);
+            // The ROM is streamed straight into the response, without a temporary file for DS games
+            try (ZipOutputStream zip = new ZipOutputStream(exchange.getResponseBody())) {
+                zip.putNextEntry(new ZipEntry(outputName));
+                result.romHandler.saveRomToStream(zip, result.seed);
+                zip.closeEntry();
+                zip.putNextEntry(new ZipEntry(outputName + ".log"));
+                zip.write(result.log);
+                zip.closeEntry();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Sending " + outputName + " failed");
+            e.printStackTrace();
+            exchange.close();
+        } finally {
+            CliRandomizer.disposeRomHandler(result.romHandler);
+        }
+    }
+
+    // The ROM is randomized as a dry run, and saved by respond once the response is under way
+    private Result randomize(LoadedRom loadedRom, Settings settings, long seed) throws IOException {
+        RomHandler romHandler = loadedRom.factory.create(new RandomSource());
+        // Like in BatchRandomizer, a handler that can't be forked from the base loads the ROM anew
+        if (!romHandler.loadRomFrom(loadedRom.baseHandler) && !romHandler.loadRom(loadedRom.romPath)) {
+            throw new IOException("Could not load " + loadedRom.romPath);
+        }
+        boolean randomized = false;
+        try {
+            settings.tweakForRom(romHandler);
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            PrintStream log;
+            try {
+                log = new PrintStream(baos, false, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                log = new PrintStream(baos);
+            }
+            Randomizer randomizer = new Randomizer(settings, romHandler, CliRandomizer.bundle, false);
+            randomizer.setDryRun(true);
+            Result result = new Result();
+            result.checkValue = randomizer.randomize(null, log, seed);
+            log.close();
+            result.romHandler = romHandler;
+            result.log = baos.toByteArray();
+            result.extension = romHandler.getDefaultExtension();
+            result.seed = seed;
+            randomized = true;
+            return result;
+        } finally {
+            if (!randomized) {
+                CliRandomizer.disposeRomHandler(romHandler);
+            }
+        }
+    }
+
+    private List<String> listRoms() {
+        TreeSet<String> roms = new TreeSet<>();
+        File[] files = romDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && CliRandomizer.findFactory(file) != null) {
+                    roms.add(file.getName());
+                }
+            }
+        }
+        return new ArrayList<>(roms);
+    }
+
+    // Base handlers are loaded on first use and never randomized themselves, every request forks them
+    private LoadedRom getLoadedRom(String romId) throws RequestException {
+        File romFile = new File(romDirectory, romId);
+        if (romId.contains("/") || romId.contains(File.separator) || !romFile.isFile()) {
+            throw new RequestException(404, "Unknown ROM " + romId);
+        }
+        LoadedRom loadedRom = loadedRoms.computeIfAbsent(romId, id -> {
+            RomHandler.Factory factory = CliRandomizer.findFactory(romFile);
+            if (factory == null) {
+                return null;
+            }
+            LoadedRom loaded = new LoadedRom();
+            loaded.factory = factory;
+            loaded.romPath = romFile.getAbsolutePath();
+            loaded.baseHandler = factory.create(new RandomSource());
+            if (!loaded.baseHandler.loadRom(loaded.romPath)) {
+                return null;
+            }
+            System.out.println("Loaded " + romId);
+            return loaded;
+        });
+        if (loadedRom == null) {
+            throw new RequestException(404, "Unsupported ROM " + romId);
+        }
+        return loadedRom;
+    }
+
+    // Accepts settings strings as shown by the GUI, including their version prefix
+    private Settings parseSettings(String settingsString) throws RequestException {
+        if (settingsString.length() < 3) {
+            throw new RequestException(400, "Invalid settings string");
+        }
+        try {
+            int settingsStringVersionNumber = Integer.parseInt(settingsString.substring(0, 3));
+            if (settingsStringVersionNumber > Version.VERSION) {
+                throw new RequestException(400, "Settings string is too new");
+            }
+            String configString = settingsString.substring(3);
+            if (settingsStringVersionNumber < Version.VERSION) {
+                configString = new SettingsUpdater().update(settingsStringVersionNumber, configString);
+            }
+            Settings settings = Settings.fromString(configString);
+            settings.setCustomNames(customNames);
+            return settings;
+        } catch (UnsupportedEncodingException | RuntimeException e) {
+            // malformed strings can fail anywhere in the decoding, not only with IllegalArgumentException
+            throw new RequestException(400, "Invalid settings string");
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int split = parameter.indexOf('=');
+            if (split > 0) {
+                query.put(URLDecoder.decode(parameter.substring(0, split), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(split + 1), "UTF-8"));
+            }
+        }
+        return query;
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return body.toByteArray();
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    public static int invoke(String[] args) {
+        String romDirectoryPath = null;
+        int port = 8080;
+        int workerCount = Runtime.getRuntime().availableProcessors();
+        int queueSize = 16;
+
+        List<String> allowedFlags = Arrays.asList("-r", "-p", "-w", "-q", "--help");
+        for (int i = 0; i < args.length; i++) {
+            if (allowedFlags.contains(args[i])) {
+                switch (args[i]) {
+                    case "-r":
+                        romDirectoryPath = args[i + 1];
+                        break;
+                    case "-p":
+                        port = CliRandomizer.parseNumber(args[i + 1]);
+                        break;
+                    case "-w":
+                        workerCount = CliRandomizer.parseNumber(args[i + 1]);
+                        break;
+                    case "-q":
+                        queueSize = CliRandomizer.parseNumber(args[i + 1]);
+                        break;
+                    case "--help":
+                        printUsage();
+                        return 0;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        if (romDirectoryPath == null || !new File(romDirectoryPath).isDirectory()) {
+            CliRandomizer.printError("Could not read ROM directory");
+            printUsage();
+            return 1;
+        }
+        if (port < 0 || port > 0xFFFF || workerCount < 1 || queueSize < 1) {
+            CliRandomizer.printError("Invalid server arguments");
+            printUsage();
+            return 1;
+        }
+
+        try {
+            RandomizerServer server = new RandomizerServer(new File(romDirectoryPath), FileFunctions.getCustomNames(),
+                    workerCount, queueSize);
+            server.start(port);
+            System.out.println("Randomizer server listening on localhost:" + port);
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: java [-Xmx4096M] -jar PokeRandoZX.jar server -r <path to ROM directory> " +
+                "[-p <port>][-w <number of workers>][-q <queue size>]");
+        System.err.println("GET /roms lists the ROMs in the ROM directory");
+        System.err.println("POST /randomize?rom=<ROM file name>[&seed=<seed>] with a settings string as body " +
+                "responds with a zip of the randomized ROM and its log");
+    }
+}
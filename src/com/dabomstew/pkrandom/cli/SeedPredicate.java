@@ -0,0 +1,130 @@
+package com.dabomstew.pkrandom.cli;
+
+/*----------------------------------------------------------------------------*/
+/*--  SeedPredicate.java - a condition on the randomized game that a seed   --*/
+/*--                       search looks for.                                --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import com.dabomstew.pkrandom.pokemon.*;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+// Every predicate names the Randomizer phase after which it can be decided. Later phases never
+// change what earlier ones randomized, so a seed search can reject a seed as soon as that phase
+// is done, without running the rest of the randomization.
+public class SeedPredicate {
+
+    private final String description;
+    private final String phase;
+    private final Predicate<RomHandler> test;
+
+    public SeedPredicate(String description, String phase, Predicate<RomHandler> test) {
+        this.description = description;
+        this.phase = phase;
+        this.test = test;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public boolean test(RomHandler romHandler) {
+        return test.test(romHandler);
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    /**
+     * Parses a predicate given on the command line. Supported are:
+     * starter=NAME, tmNN=MOVE, wild=NAME, static=NAME and nowildlegendaries.
+     *
+     * @throws IllegalArgumentException If the text is not a supported predicate
+     */
+    public static SeedPredicate parse(String text) {
+        int split = text.indexOf('=');
+        String key = (split < 0 ? text : text.substring(0, split)).trim().toLowerCase();
+        String value = split < 0 ? "" : text.substring(split + 1).trim();
+        if (key.equals("starter") && !value.isEmpty()) {
+            return new SeedPredicate(text, "Starters", rh -> anyNamed(rh.getStarters(), value));
+        } else if (key.matches("tm[0-9]+") && !value.isEmpty()) {
+            int tm = Integer.parseInt(key.substring(2));
+            return new SeedPredicate(text, "TMs", rh -> {
+                List<Integer> tmMoves = rh.getTMMoves();
+                return tm >= 1 && tm <= tmMoves.size()
+                        && rh.getMoves().get(tmMoves.get(tm - 1)).name.equalsIgnoreCase(value);
+            });
+        } else if (key.equals("wild") && !value.isEmpty()) {
+            return new SeedPredicate(text, "Wild Pokemon", rh -> {
+                for (EncounterSet es : rh.getEncounters(true)) {
+                    for (Encounter e : es.encounters) {
+                        if (isNamed(e.pokemon, value)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            });
+        } else if (key.equals("static") && !value.isEmpty()) {
+            return new SeedPredicate(text, "Static Pokemon", rh -> {
+                if (!rh.canChangeStaticPokemon()) {
+                    return false;
+                }
+                for (StaticEncounter se : rh.getStaticPokemon()) {
+                    if (isNamed(se.pkmn, value)) {
+                        return true;
+                    }
+                }
+                return false;
+            });
+        } else if (key.equals("nowildlegendaries") && split < 0) {
+            return new SeedPredicate(text, "Wild Pokemon", rh -> {
+                for (EncounterSet es : rh.getEncounters(true)) {
+                    for (Encounter e : es.encounters) {
+                        if (e.pokemon.isLegendary()) {
+                            return false;
+                        }
+                    }
+                }
+                return true;
+            });
+        }
+        throw new IllegalArgumentException("Unsupported seed predicate: " + text);
+    }
+
+    private static boolean anyNamed(List<Pokemon> pokemon, String name) {
+        for (Pokemon pk : pokemon) {
+            if (isNamed(pk, name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNamed(Pokemon pk, String name) {
+        return pk != null && (pk.fullName().equalsIgnoreCase(name) || pk.name.equalsIgnoreCase(name));
+    }
+}
@@ -0,0 +1,205 @@
+package com.dabomstew.pkrandom.cli;
+
+/*----------------------------------------------------------------------------*/
+/*--  SeedSearch.java - finds seeds whose randomized game satisfies a set   --*/
+/*--                    of predicates, on a pool of workers.                --*/
+/*--                                                                        --*/
+/*--  Part of "Universal Pokemon Randomizer ZX" by the UPR-ZX team          --*/
+/*--  Pokemon and any associated names and the like are                     --*/
+/*--  trademark and (C) Nintendo 1996-2020.                                 --*/
+/*--                                                                        --*/
+/*--  The custom code written here is licensed under the terms of the GPL:  --*/
+/*--                                                                        --*/
+/*--  This program is free software: you can redistribute it and/or modify  --*/
+/*--  it under the terms of the GNU General Public License as published by  --*/
+/*--  the Free Software Foundation, either version 3 of the License, or     --*/
+/*--  (at your option) any later version.                                   --*/
+/*--                                                                        --*/
+/*--  This program is distributed in the hope that it will be useful,       --*/
+/*--  but WITHOUT ANY WARRANTY; without even the implied warranty of        --*/
+/*--  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the          --*/
+/*--  GNU General Public License for more details.                          --*/
+/*--                                                                        --*/
+/*--  You should have received a copy of the GNU General Public License     --*/
+/*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
+/*----------------------------------------------------------------------------*/
+
+import com.dabomstew.pkrandom.CustomNamesSet;
+import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.Randomizer;
+import com.dabomstew.pkrandom.Settings;
+import com.dabomstew.pkrandom.exceptions.RandomizationException;
+import com.dabomstew.pkrandom.exceptions.RandomizationStoppedException;
+import com.dabomstew.pkrandom.romhandlers.RomHandler;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Seeds are tried in increasing order from a starting seed, each as a dry run on a fork of the
+// loaded ROM. A seed's randomization is stopped as soon as one of the predicates fails, or once
+// all of them have passed, so only the phases up to the last predicate are ever run. Workers stop
+// claiming seeds once enough matches were found below the next unclaimed seed, which makes the
+// result the lowest matching seeds, however many workers are used.
+public class SeedSearch {
+
+    private final RomHandler.Factory factory;
+    private final RomHandler baseHandler;
+    private final String settingsString;
+    private final CustomNamesSet customNames;
+    private final ResourceBundle bundle;
+    private final List<SeedPredicate> predicates;
+
+    private final AtomicLong nextSeed = new AtomicLong();
+    private final AtomicLong triedSeeds = new AtomicLong();
+    private final NavigableSet<Long> matches = new ConcurrentSkipListSet<>();
+    private long endSeed;
+    private int wantedMatches;
+
+    public SeedSearch(RomHandler.Factory factory, RomHandler baseHandler, Settings settings, ResourceBundle bundle,
+                      List<SeedPredicate> predicates) {
+        this.factory = factory;
+        this.baseHandler = baseHandler;
+        this.settingsString = settings.toString();
+        this.customNames = settings.getCustomNames();
+        this.bundle = bundle;
+        this.predicates = predicates;
+    }
+
+    /**
+     * Searches the seeds from firstSeed up to firstSeed + seedCount for matches.
+     *
+     * @return The lowest matching seeds, at most wantedMatches of them, in increasing order
+     */
+    public List<Long> search(long firstSeed, long seedCount, int wantedMatches, int workers) {
+        this.wantedMatches = wantedMatches;
+        this.endSeed = firstSeed + seedCount;
+        nextSeed.set(firstSeed);
+        triedSeeds.set(0);
+        matches.clear();
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, workers));
+        List<Future<?>> results = new ArrayList<>();
+        for (int i = 0; i < Math.max(1, workers); i++) {
+            results.add(executor.submit(() -> {
+                searchSeeds();
+                return null;
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        List<Long> firstMatches = new ArrayList<>();
+        Iterator<Long> it = matches.iterator();
+        while (it.hasNext() && firstMatches.size() < wantedMatches) {
+            firstMatches.add(it.next());
+        }
+        return firstMatches;
+    }
+
+    public long getTriedSeeds() {
+        return triedSeeds.get();
+    }
+
+    private void searchSeeds() throws UnsupportedEncodingException {
+        while (true) {
+            long seed = nextSeed.getAndIncrement();
+            if (seed >= endSeed || enoughMatchesBelow(seed)) {
+                return;
+            }
+            triedSeeds.incrementAndGet();
+            if (matches(seed)) {
+                matches.add(seed);
+            }
+        }
+    }
+
+    private boolean enoughMatchesBelow(long seed) {
+        if (matches.size() < wantedMatches) {
+            return false;
+        }
+        Iterator<Long> it = matches.iterator();
+        for (int i = 0; i < wantedMatches - 1; i++) {
+            it.next();
+        }
+        return it.next() < seed;
+    }
+
+    private boolean matches(long seed) throws UnsupportedEncodingException {
+        RomHandler romHandler = factory.create(new RandomSource());
+        romHandler.setDryRun(true);
+        if (!romHandler.loadRomFrom(baseHandler)) {
+            throw new IllegalStateException("Could not fork " + baseHandler.loadedFilename());
+        }
+        SeedEvaluation evaluation = new SeedEvaluation(romHandler);
+        try {
+            Settings settings = Settings.fromString(settingsString);
+            settings.setCustomNames(customNames);
+            settings.tweakForRom(romHandler);
+
+            Randomizer randomizer = new Randomizer(settings, romHandler, bundle, false);
+            randomizer.setDryRun(true);
+            randomizer.setPhaseListener(evaluation);
+            randomizer.randomize(null, null, seed);
+            // Predicates on phases that were never reached are decided on the finished game
+            return evaluation.testRemaining();
+        } catch (RandomizationStoppedException e) {
+            return !evaluation.failed;
+        } catch (RandomizationException e) {
+            // the settings cannot be satisfied with this seed at all
+            return false;
+        } finally {
+            CliRandomizer.disposeRomHandler(romHandler);
+        }
+    }
+
+    private class SeedEvaluation implements Randomizer.PhaseListener {
+        private final RomHandler romHandler;
+        private final List<SeedPredicate> remaining = new ArrayList<>(predicates);
+        private boolean failed;
+
+        private SeedEvaluation(RomHandler romHandler) {
+            this.romHandler = romHandler;
+        }
+
+        @Override
+        public boolean phaseCompleted(String phase) {
+            Iterator<SeedPredicate> it = remaining.iterator();
+            while (it.hasNext()) {
+                SeedPredicate predicate = it.next();
+                if (predicate.getPhase().equals(phase)) {
+                    if (!predicate.test(romHandler)) {
+                        failed = true;
+                        return false;
+                    }
+                    it.remove();
+                }
+            }
+            return !remaining.isEmpty();
+        }
+
+        private boolean testRemaining() {
+            for (SeedPredicate predicate : remaining) {
+                if (!predicate.test(romHandler)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -21,8 +21,10 @@ package com.dabomstew.pkrandom.ctr;
 /*--  along with this program. If not, see <http://www.gnu.org/licenses/>.  --*/
 /*----------------------------------------------------------------------------*/
 
+import com.dabomstew.pkrandom.ContentStore;
 import com.dabomstew.pkrandom.FileFunctions;
-import com.dabomstew.pkrandom.SysConstants;
+import com.dabomstew.pkrandom.RomFileHeader;
+import com.dabomstew.pkrandom.RomIOEvent;
 import com.dabomstew.pkrandom.exceptions.CannotWriteToLocationException;
 import com.dabomstew.pkrandom.exceptions.EncryptedROMException;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
@@ -34,6 +36,8 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.*;
 import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class NCCH {
     private String romFilename;
@@ -49,10 +53,9 @@ public class NCCH {
     private List<FileMetadata> fileMetadataList;
     private Map<String, RomfsFile> romfsFiles;
     private boolean romOpen;
-    private String tmpFolder;
-    private boolean writingEnabled;
+    private final ContentStore contents;
     private boolean codeCompressed, codeOpen, codeChanged;
-    private byte[] codeRamstored;
+    private final OriginalData original;
 
     // Public so the base game can read it from the game update NCCH
     public long originalCodeCRC, originalRomfsHeaderCRC;
@@ -71,31 +74,25 @@ public class NCCH {
     private static final int metadata_unused = 0xFFFFFFFF;
 
     public NCCH(String filename, String productCode, String titleId) throws IOException {
+        this(filename, productCode, titleId, ContentStore.getDefaultBudget());
+    }
+
+    // Files that are opened are kept in memory up to contentBudget bytes, and in temp files
+    // past that
+    public NCCH(String filename, String productCode, String titleId, long contentBudget) throws IOException {
         this.romFilename = filename;
         this.baseRom = new RandomAccessFile(filename, "r");
         this.ncchStartingOffset = NCCH.getCXIOffsetInFile(filename);
         this.productCode = productCode;
         this.titleId = titleId;
         this.romOpen = true;
+        this.original = new OriginalData();
 
         if (this.ncchStartingOffset != -1) {
             this.version = this.readVersionFromFile();
         }
 
-        // TMP folder?
-        String rawFilename = new File(filename).getName();
-        String dataFolder = "tmp_" + rawFilename.substring(0, rawFilename.lastIndexOf('.'));
-        // remove nonsensical chars
-        dataFolder = dataFolder.replaceAll("[^A-Za-z0-9_]+", "");
-        File tmpFolder = new File(SysConstants.ROOT_PATH + dataFolder);
-        tmpFolder.mkdirs();
-        if (tmpFolder.canWrite()) {
-            writingEnabled = true;
-            this.tmpFolder = SysConstants.ROOT_PATH + dataFolder + File.separator;
-            tmpFolder.deleteOnExit();
-        } else {
-            writingEnabled = false;
-        }
+        this.contents = new ContentStore(contentBudget);
 
         // The below code handles things "wrong" with regards to encrypted ROMs. We just
         // blindly treat the ROM as decrypted and try to parse all of its data, when we
@@ -114,6 +111,40 @@ public class NCCH {
         }
     }
 
+    // Forks an already loaded NCCH. The fork reuses the parsed exefs and romfs metadata and shares
+    // the original file contents and decompressed .code with its base, so only the files it
+    // changes are copied.
+    public NCCH(NCCH base, long contentBudget) throws IOException {
+        this.romFilename = base.romFilename;
+        this.baseRom = new RandomAccessFile(romFilename, "r");
+        this.ncchStartingOffset = base.ncchStartingOffset;
+        this.productCode = base.productCode;
+        this.titleId = base.titleId;
+        this.version = base.version;
+        this.romOpen = true;
+        this.original = base.original;
+        // the shared cache is bounded by the same -cm budget as each NCCH's own content store,
+        // even when the forks themselves are dry runs with no budget
+        original.filesBudget = Math.min(ContentStore.getDefaultBudget(), contentBudget);
+        this.contents = new ContentStore(contentBudget);
+
+        this.exefsOffset = base.exefsOffset;
+        this.romfsOffset = base.romfsOffset;
+        this.fileDataOffset = base.fileDataOffset;
+        this.codeCompressed = base.codeCompressed;
+        this.codeFileHeader = base.codeFileHeader;
+        this.extraExefsFiles = base.extraExefsFiles;
+        if (original.smdh != null) {
+            this.smdh = new SMDH(original.smdh.clone());
+        }
+        this.originalRomfsHeaderCRC = base.originalRomfsHeaderCRC;
+        if (original.fileMetadataBlock != null) {
+            fileMetadataList = new ArrayList<>();
+            romfsFiles = new TreeMap<>();
+            visitDirectory(0, "", original.directoryMetadataBlock, original.fileMetadataBlock);
+        }
+    }
+
     public void reopenROM() throws IOException {
         if (!this.romOpen) {
             baseRom = new RandomAccessFile(this.romFilename, "r");
@@ -162,6 +193,7 @@ public class NCCH {
                 byte[] smdhBytes = new byte[fileHeader.size];
                 baseRom.seek(exefsOffset + 0x200 + fileHeader.offset);
                 baseRom.readFully(smdhBytes);
+                original.smdh = smdhBytes.clone();
                 smdh = new SMDH(smdhBytes);
             }
         }
@@ -207,6 +239,8 @@ public class NCCH {
         byte[] fileMetadataBlock = new byte[fileMetadataLength];
         baseRom.seek(level3Offset + fileMetadataOffset);
         baseRom.readFully(fileMetadataBlock);
+        original.directoryMetadataBlock = directoryMetadataBlock;
+        original.fileMetadataBlock = fileMetadataBlock;
         fileMetadataList = new ArrayList<>();
         romfsFiles = new TreeMap<>();
         visitDirectory(0, "", directoryMetadataBlock, fileMetadataBlock);
@@ -304,7 +338,9 @@ public class NCCH {
 
         // Now, reconstruct the exefs based on our new version of .code and our new SMDH
         long newExefsOffset = header_and_exheader_size + logoLength + plainLength;
+        RomIOEvent exefsEvent = RomIOEvent.start("NCCH exefs rebuild", filename);
         long newExefsLength = rebuildExefs(fNew, newExefsOffset);
+        exefsEvent.finish(newExefsLength);
         fNew.seek(0x1A0);
         fNew.write((int) newExefsOffset / media_unit_size);
         fNew.seek(0x1A4);
@@ -313,7 +349,9 @@ public class NCCH {
         // Then, reconstruct the romfs
         // TODO: Fix the yet-unsolved alignment issues in rebuildRomfs when you remove this align
         long newRomfsOffset = alignLong(header_and_exheader_size + logoLength + plainLength + newExefsLength, 4096);
+        RomIOEvent romfsEvent = RomIOEvent.start("NCCH romfs rebuild", filename);
         long newRomfsLength = rebuildRomfs(fNew, newRomfsOffset);
+        romfsEvent.finish(newRomfsLength);
         fNew.seek(0x1B0);
         fNew.write((int) newRomfsOffset / media_unit_size);
         fNew.seek(0x1B4);
@@ -610,6 +648,31 @@ public class NCCH {
         }
     }
 
+    // The same files as saveAsLayeredFS, in a single zip file
+    public void saveAsLayeredFSZip(String filename) throws IOException {
+        RomIOEvent event = RomIOEvent.start("LayeredFS zip", filename);
+        long bytes = 0;
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+            if (codeChanged) {
+                byte[] code = getCode();
+                zip.putNextEntry(new ZipEntry(titleId + "/code.bin"));
+                zip.write(code);
+                zip.closeEntry();
+                bytes += code.length;
+            }
+            for (RomfsFile file : romfsFiles.values()) {
+                if (file.fileChanged) {
+                    byte[] contents = file.getOverrideContents();
+                    zip.putNextEntry(new ZipEntry(titleId + "/romfs/" + file.fullPath));
+                    zip.write(contents);
+                    zip.closeEntry();
+                    bytes += contents.length;
+                }
+            }
+        }
+        event.finish(bytes, new File(filename).length());
+    }
+
     private void purgeDirectory(File directory) {
         for (File file : directory.listFiles()) {
             if (file.isDirectory()) {
@@ -657,70 +720,66 @@ public class NCCH {
 
     // Retrieves a decompressed version of .code (the game's executable).
     // The first time this is called, it will retrieve it straight from the
-    // exefs. Future calls will rely on a cached version to speed things up.
-    // If writing is enabled, it will cache the decompressed version to the
-    // tmpFolder; otherwise, it will store it in RAM.
+    // exefs. Future calls will rely on the decompressed version kept in the
+    // content store to speed things up.
     public byte[] getCode() throws IOException {
         if (!codeOpen) {
             codeOpen = true;
-            byte[] code = new byte[codeFileHeader.size];
+            byte[] code = readOriginalCode();
 
-            // File header offsets are from the start of the exefs but *exclude* the
-            // size of the exefs header, so we need to add it back ourselves.
-            baseRom.seek(exefsOffset + exefs_header_size + codeFileHeader.offset);
-            baseRom.readFully(code);
-            originalCodeCRC = FileFunctions.getCRC32(code);
-
-            if (codeCompressed) {
-                code = new BLZCoder(null).BLZ_DecodePub(code, ".code");
-            }
+            contents.put(".code", code);
+            return code;
+        }
+        return contents.get(".code");
+    }
 
-            // Now actually make the copy or w/e
-            if (writingEnabled) {
-                File arm9file = new File(tmpFolder + ".code");
-                FileOutputStream fos = new FileOutputStream(arm9file);
-                fos.write(code);
-                fos.close();
-                arm9file.deleteOnExit();
-                this.codeRamstored = null;
+    // The decompressed original .code is shared with every fork of this NCCH, so it is only
+    // read and decompressed once.
+    private byte[] readOriginalCode() throws IOException {
+        synchronized (original) {
+            if (original.code == null) {
+                byte[] code = new byte[codeFileHeader.size];
+
+                // File header offsets are from the start of the exefs but *exclude* the
+                // size of the exefs header, so we need to add it back ourselves.
+                baseRom.seek(exefsOffset + exefs_header_size + codeFileHeader.offset);
+                baseRom.readFully(code);
+                originalCodeCRC = FileFunctions.getCRC32(code);
+
+                if (codeCompressed) {
+                    code = new BLZCoder(null).BLZ_DecodePub(code, ".code");
+                }
+                original.code = code.clone();
+                original.codeCRC = originalCodeCRC;
                 return code;
-            } else {
-                this.codeRamstored = code;
-                byte[] newcopy = new byte[code.length];
-                System.arraycopy(code, 0, newcopy, 0, code.length);
-                return newcopy;
-            }
-        } else {
-            if (writingEnabled) {
-                return FileFunctions.readFileFullyIntoBuffer(tmpFolder + ".code");
-            } else {
-                byte[] newcopy = new byte[this.codeRamstored.length];
-                System.arraycopy(this.codeRamstored, 0, newcopy, 0, this.codeRamstored.length);
-                return newcopy;
             }
+            originalCodeCRC = original.codeCRC;
+            return original.code.clone();
         }
     }
 
+    // Once an NCCH has been forked, the most recently read original romfs files are shared
+    // between the NCCH and all of its forks, up to the content budget; the rest are read from
+    // disk again when needed. Callers always get their own copy.
+    byte[] readOriginalFile(String fullPath, long offset, int size) throws IOException {
+        byte[] contents = original.getFile(fullPath);
+        if (contents != null) {
+            return contents;
+        }
+        this.reopenROM();
+        contents = new byte[size];
+        baseRom.seek(offset);
+        baseRom.readFully(contents);
+        original.putFile(fullPath, contents);
+        return contents;
+    }
+
     public void writeCode(byte[] code) throws IOException {
         if (!codeOpen) {
             getCode();
         }
         codeChanged = true;
-        if (writingEnabled) {
-            FileOutputStream fos = new FileOutputStream(new File(tmpFolder + ".code"));
-            fos.write(code);
-            fos.close();
-        } else {
-            if (this.codeRamstored.length == code.length) {
-                // copy new in
-                System.arraycopy(code, 0, this.codeRamstored, 0, code.length);
-            } else {
-                // make new array
-                this.codeRamstored = null;
-                this.codeRamstored = new byte[code.length];
-                System.arraycopy(code, 0, this.codeRamstored, 0, code.length);
-            }
-        }
+        contents.put(".code", code);
     }
 
     public boolean hasFile(String filename) {
@@ -783,16 +842,19 @@ public class NCCH {
         return fileDiagnostics;
     }
 
-    public String getTmpFolder() {
-        return tmpFolder;
+    // Closes the ROM and drops everything extracted from it, for when the ROM will not be
+    // read from or saved again
+    public void dispose() throws IOException {
+        closeROM();
+        contents.dispose();
     }
 
-    public RandomAccessFile getBaseRom() {
-        return baseRom;
+    ContentStore getContentStore() {
+        return contents;
     }
 
-    public boolean isWritingEnabled() {
-        return writingEnabled;
+    public RandomAccessFile getBaseRom() {
+        return baseRom;
     }
 
     public String getProductCode() {
@@ -876,48 +938,46 @@ public class NCCH {
     // firmware updates, among other things. This function's determines the location
     // of the CXI regardless of the container.
     public static long getCXIOffsetInFile(String filename) {
-        try {
-            RandomAccessFile rom = new RandomAccessFile(filename, "r");
-            int ciaHeaderSize = FileFunctions.readIntFromFile(rom, 0x00);
-            if (ciaHeaderSize == cia_header_size) {
-                // This *might* be a CIA; let's do our best effort to try to get
-                // a CXI out of this.
-                int certChainSize = FileFunctions.readIntFromFile(rom, 0x08);
-                int ticketSize = FileFunctions.readIntFromFile(rom, 0x0C);
-                int tmdFileSize = FileFunctions.readIntFromFile(rom, 0x10);
-
-                // If this is *really* a CIA, we'll find our CXI at the beginning of the
-                // content section, which is after the certificate chain, ticket, and TMD
-                long certChainOffset = NCCH.alignLong(ciaHeaderSize, 64);
-                long ticketOffset = NCCH.alignLong(certChainOffset + certChainSize, 64);
-                long tmdOffset = NCCH.alignLong(ticketOffset + ticketSize, 64);
-                long contentOffset = NCCH.alignLong(tmdOffset + tmdFileSize, 64);
-                int magic = FileFunctions.readBigEndianIntFromFile(rom, contentOffset + ncch_and_ncsd_magic_offset);
-                if (magic == ncch_magic) {
-                    // This CIA's content contains a valid CXI!
-                    return contentOffset;
-                }
-            }
+        return getCXIOffset(new RomFileHeader(filename));
+    }
 
-            // We don't put the following code in an else-block because there *might*
-            // exist a totally-valid CXI or CCI whose first four bytes just so
-            // *happen* to be the same as the first four bytes of a CIA file.
-            int magic = FileFunctions.readBigEndianIntFromFile(rom, ncch_and_ncsd_magic_offset);
-            rom.close();
+    public static long getCXIOffset(RomFileHeader header) {
+        int ciaHeaderSize = header.readInt(0x00);
+        if (ciaHeaderSize == cia_header_size) {
+            // This *might* be a CIA; let's do our best effort to try to get
+            // a CXI out of this.
+            int certChainSize = header.readInt(0x08);
+            int ticketSize = header.readInt(0x0C);
+            int tmdFileSize = header.readInt(0x10);
+
+            // If this is *really* a CIA, we'll find our CXI at the beginning of the
+            // content section, which is after the certificate chain, ticket, and TMD
+            long certChainOffset = NCCH.alignLong(ciaHeaderSize, 64);
+            long ticketOffset = NCCH.alignLong(certChainOffset + certChainSize, 64);
+            long tmdOffset = NCCH.alignLong(ticketOffset + ticketSize, 64);
+            long contentOffset = NCCH.alignLong(tmdOffset + tmdFileSize, 64);
+            int magic = header.readBigEndianInt(contentOffset + ncch_and_ncsd_magic_offset);
             if (magic == ncch_magic) {
-                // Magic is NCCH, so this just a straight-up NCCH/CXI; there is no container
-                // around the game data. Thus, the CXI offset is the beginning of the file.
-                return 0;
-            } else if (magic == ncsd_magic) {
-                // Magic is NCSD, so this is almost certainly a CCI. The CXI is always
-                // a fixed distance away from the start.
-                return 0x4000;
-            } else {
-                // This doesn't seem to be a valid 3DS file.
-                return -1;
+                // This CIA's content contains a valid CXI!
+                return contentOffset;
             }
-        } catch (IOException e) {
-            throw new RandomizerIOException(e);
+        }
+
+        // We don't put the following code in an else-block because there *might*
+        // exist a totally-valid CXI or CCI whose first four bytes just so
+        // *happen* to be the same as the first four bytes of a CIA file.
+        int magic = header.readBigEndianInt(ncch_and_ncsd_magic_offset);
+        if (magic == ncch_magic) {
+            // Magic is NCCH, so this just a straight-up NCCH/CXI; there is no container
+            // around the game data. Thus, the CXI offset is the beginning of the file.
+            return 0;
+        } else if (magic == ncsd_magic) {
+            // Magic is NCSD, so this is almost certainly a CCI. The CXI is always
+            // a fixed distance away from the start.
+            return 0x4000;
+        } else {
+            // This doesn't seem to be a valid 3DS file.
+            return -1;
         }
     }
 
@@ -1021,4 +1081,34 @@ public class NCCH {
             return output;
         }
     }
+
+    private static class OriginalData {
+        // least recently used first; nothing is kept until the NCCH is forked
+        private final LinkedHashMap<String, byte[]> files = new LinkedHashMap<>(16, 0.75f, true);
+        private long filesSize;
+        private volatile long filesBudget;
+        private byte[] smdh;
+        private byte[] directoryMetadataBlock, fileMetadataBlock;
+        private byte[] code;
+        private long codeCRC;
+
+        private synchronized byte[] getFile(String fullPath) {
+            byte[] contents = files.get(fullPath);
+            return contents == null ? null : contents.clone();
+        }
+
+        // Files that were dropped are still in the ROM, so nothing has to be spilled
+        private synchronized void putFile(String fullPath, byte[] contents) {
+            if (filesBudget == 0 || contents.length > filesBudget || files.containsKey(fullPath)) {
+                return;
+            }
+            files.put(fullPath, contents.clone());
+            filesSize += contents.length;
+            Iterator<Map.Entry<String, byte[]>> eldest = files.entrySet().iterator();
+            while (filesSize > filesBudget) {
+                filesSize -= eldest.next().getValue().length;
+                eldest.remove();
+            }
+        }
+    }
 }
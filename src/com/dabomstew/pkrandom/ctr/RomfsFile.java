@@ -23,10 +23,7 @@ package com.dabomstew.pkrandom.ctr;
 
 import com.dabomstew.pkrandom.FileFunctions;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 
 public class RomfsFile {
 
@@ -34,9 +31,7 @@ public class RomfsFile {
     public long offset;
     public int size;
     public String fullPath;
-    private Extracted status = Extracted.NOT;
-    private String extFilename;
-    public byte[] data;
+    private boolean extracted;
     public boolean fileChanged = false;
     public long originalCRC;
 
@@ -45,77 +40,36 @@ public class RomfsFile {
     }
 
     public byte[] getContents() throws IOException {
-        if (this.status == Extracted.NOT) {
+        if (!extracted) {
             // extract file
-            parent.reopenROM();
-            RandomAccessFile rom = parent.getBaseRom();
-            byte[] buf = new byte[this.size];
-            rom.seek(this.offset);
-            rom.readFully(buf);
+            byte[] buf = parent.readOriginalFile(this.fullPath, this.offset, this.size);
             originalCRC = FileFunctions.getCRC32(buf);
-            if (parent.isWritingEnabled()) {
-                // make a file
-                String tmpDir = parent.getTmpFolder();
-                this.extFilename = fullPath.replaceAll("[^A-Za-z0-9_\\.]+", "");
-                File tmpFile = new File(tmpDir + extFilename);
-                FileOutputStream fos = new FileOutputStream(tmpFile);
-                fos.write(buf);
-                fos.close();
-                tmpFile.deleteOnExit();
-                this.status = Extracted.TO_FILE;
-                this.data = null;
-                return buf;
-            } else {
-                this.status = Extracted.TO_RAM;
-                this.data = buf;
-                byte[] newcopy = new byte[buf.length];
-                System.arraycopy(buf, 0, newcopy, 0, buf.length);
-                return newcopy;
-            }
-        } else if (this.status == Extracted.TO_RAM) {
-            byte[] newcopy = new byte[this.data.length];
-            System.arraycopy(this.data, 0, newcopy, 0, this.data.length);
-            return newcopy;
-        } else {
-            String tmpDir = parent.getTmpFolder();
-            return FileFunctions.readFileFullyIntoBuffer(tmpDir + this.extFilename);
+            parent.getContentStore().put(storeKey(), buf);
+            extracted = true;
+            return buf;
         }
+        return parent.getContentStore().get(storeKey());
     }
 
     public void writeOverride(byte[] data) throws IOException {
-        if (status == Extracted.NOT) {
+        if (!extracted) {
             // temp extract
             getContents();
         }
         fileChanged = true;
         size = data.length;
-        if (status == Extracted.TO_FILE) {
-            String tmpDir = parent.getTmpFolder();
-            FileOutputStream fos = new FileOutputStream(new File(tmpDir + this.extFilename));
-            fos.write(data);
-            fos.close();
-        } else {
-            if (this.data.length == data.length) {
-                // copy new in
-                System.arraycopy(data, 0, this.data, 0, data.length);
-            } else {
-                // make new array
-                this.data = null;
-                this.data = new byte[data.length];
-                System.arraycopy(data, 0, this.data, 0, data.length);
-            }
-        }
+        parent.getContentStore().put(storeKey(), data);
     }
 
     // returns null if no override
     public byte[] getOverrideContents() throws IOException {
-        if (status == Extracted.NOT) {
+        if (!extracted) {
             return null;
         }
         return getContents();
     }
 
-    private enum Extracted {
-        NOT, TO_FILE, TO_RAM
+    private String storeKey() {
+        return "romfs:" + fullPath;
     }
 }
@@ -27,6 +27,7 @@ package com.dabomstew.pkrandom.newgui;
 
 import com.dabomstew.pkrandom.*;
 import com.dabomstew.pkrandom.cli.CliRandomizer;
+import com.dabomstew.pkrandom.cli.RandomizerServer;
 import com.dabomstew.pkrandom.constants.GlobalConstants;
 import com.dabomstew.pkrandom.exceptions.CannotWriteToLocationException;
 import com.dabomstew.pkrandom.exceptions.EncryptedROMException;
@@ -760,45 +761,44 @@ public class NewRandomizerGUI {
                 }
             }
 
-            for (RomHandler.Factory rhf : checkHandlers) {
-                if (rhf.isLoadable(fh.getAbsolutePath())) {
-                    this.romHandler = rhf.create(RandomSource.instance());
-                    if (!usedLauncher && this.romHandler instanceof Abstract3DSRomHandler) {
-                        String message = bundle.getString("GUI.pleaseUseTheLauncher");
-                        Object[] messages = {message};
-                        JOptionPane.showMessageDialog(frame, messages);
-                        this.romHandler = null;
-                        return;
+            RomHandler.Factory rhf = RomHandler.Factory.findFactory(fh.getAbsolutePath(), checkHandlers);
+            if (rhf != null) {
+                this.romHandler = rhf.create(new RandomSource());
+                if (!usedLauncher && this.romHandler instanceof Abstract3DSRomHandler) {
+                    String message = bundle.getString("GUI.pleaseUseTheLauncher");
+                    Object[] messages = {message};
+                    JOptionPane.showMessageDialog(frame, messages);
+                    this.romHandler = null;
+                    return;
+                }
+                opDialog = new OperationDialog(bundle.getString("GUI.loadingText"), frame, true);
+                Thread t = new Thread(() -> {
+                    boolean romLoaded = false;
+                    SwingUtilities.invokeLater(() -> opDialog.setVisible(true));
+                    try {
+                        this.romHandler.loadRom(fh.getAbsolutePath());
+                        if (gameUpdates.containsKey(this.romHandler.getROMCode())) {
+                            this.romHandler.loadGameUpdate(gameUpdates.get(this.romHandler.getROMCode()));
+                        }
+                        romLoaded = true;
+                    } catch (EncryptedROMException ex) {
+                        JOptionPane.showMessageDialog(mainPanel,
+                                String.format(bundle.getString("GUI.encryptedRom"), fh.getAbsolutePath()));
+                    } catch (Exception ex) {
+                        attemptToLogException(ex, "GUI.loadFailed", "GUI.loadFailedNoLog", null, null);
                     }
-                    opDialog = new OperationDialog(bundle.getString("GUI.loadingText"), frame, true);
-                    Thread t = new Thread(() -> {
-                        boolean romLoaded = false;
-                        SwingUtilities.invokeLater(() -> opDialog.setVisible(true));
-                        try {
-                            this.romHandler.loadRom(fh.getAbsolutePath());
-                            if (gameUpdates.containsKey(this.romHandler.getROMCode())) {
-                                this.romHandler.loadGameUpdate(gameUpdates.get(this.romHandler.getROMCode()));
-                            }
-                            romLoaded = true;
-                        } catch (EncryptedROMException ex) {
-                            JOptionPane.showMessageDialog(mainPanel,
-                                    String.format(bundle.getString("GUI.encryptedRom"), fh.getAbsolutePath()));
-                        } catch (Exception ex) {
-                            attemptToLogException(ex, "GUI.loadFailed", "GUI.loadFailedNoLog", null, null);
+                    final boolean loadSuccess = romLoaded;
+                    SwingUtilities.invokeLater(() -> {
+                        this.opDialog.setVisible(false);
+                        this.initialState();
+                        if (loadSuccess) {
+                            this.romLoaded();
                         }
-                        final boolean loadSuccess = romLoaded;
-                        SwingUtilities.invokeLater(() -> {
-                            this.opDialog.setVisible(false);
-                            this.initialState();
-                            if (loadSuccess) {
-                                this.romLoaded();
-                            }
-                        });
                     });
-                    t.start();
+                });
+                t.start();
 
-                    return;
-                }
+                return;
             }
             JOptionPane.showMessageDialog(mainPanel,
                     String.format(bundle.getString("GUI.unsupportedRom"), fh.getName()));
@@ -921,7 +921,7 @@ public class NewRandomizerGUI {
         // Get a seed
         long seed = RandomSource.pickSeed();
         // Apply it
-        RandomSource.seed(seed);
+        romHandler.getRandomSource().seed(seed);
         presetMode = false;
 
         try {
@@ -1197,7 +1197,7 @@ public class NewRandomizerGUI {
 
             if (allowed && fh != null) {
                 // Apply the seed we were given
-                RandomSource.seed(seed);
+                romHandler.getRandomSource().seed(seed);
                 presetMode = true;
                 performRandomization(fh.getAbsolutePath(), seed, pld.getCustomNames(), outputType == SaveType.DIRECTORY);
             }
@@ -1408,35 +1408,39 @@ public class NewRandomizerGUI {
     // to reload the same game to reinitialize the RomHandler. Don't use this for other purposes unless you know what
     // you're doing.
     private void reinitializeRomHandler(boolean batchRandomization) {
-        String currentFN = this.romHandler.loadedFilename();
-        for (RomHandler.Factory rhf : checkHandlers) {
-            if (rhf.isLoadable(currentFN)) {
-                this.romHandler = rhf.create(RandomSource.instance());
-                opDialog = new OperationDialog(bundle.getString("GUI.loadingText"), frame, true);
-                Thread t = new Thread(() -> {
-                    SwingUtilities.invokeLater(() -> opDialog.setVisible(!batchRandomization));
-                    try {
+        RomHandler previousHandler = this.romHandler;
+        String currentFN = previousHandler.loadedFilename();
+        RomHandler.Factory rhf = RomHandler.Factory.findFactory(currentFN, checkHandlers);
+        if (rhf != null) {
+            this.romHandler = rhf.create(new RandomSource());
+            opDialog = new OperationDialog(bundle.getString("GUI.loadingText"), frame, true);
+            Thread t = new Thread(() -> {
+                SwingUtilities.invokeLater(() -> opDialog.setVisible(!batchRandomization));
+                try {
+                    // Fork the previous handler, which still has the original ROM data, instead
+                    // of reading and parsing the whole ROM from disk again
+                    if (!this.romHandler.loadRomFrom(previousHandler)) {
                         this.romHandler.loadRom(currentFN);
                         if (gameUpdates.containsKey(this.romHandler.getROMCode())) {
                             this.romHandler.loadGameUpdate(gameUpdates.get(this.romHandler.getROMCode()));
                         }
-                    } catch (Exception ex) {
-                        attemptToLogException(ex, "GUI.loadFailed", "GUI.loadFailedNoLog", null, null);
                     }
-                    SwingUtilities.invokeLater(() -> {
-                        this.opDialog.setVisible(false);
-                    });
+                } catch (Exception ex) {
+                    attemptToLogException(ex, "GUI.loadFailed", "GUI.loadFailedNoLog", null, null);
+                }
+                SwingUtilities.invokeLater(() -> {
+                    this.opDialog.setVisible(false);
                 });
-                t.start();
-                if (batchRandomization) {
-                    try {
-                        t.join();
-                    } catch(InterruptedException ex) {
-                        attemptToLogException(ex, "GUI.loadFailed", "GUI.loadFailedNoLog", null, null);
-                    }
+            });
+            t.start();
+            if (batchRandomization) {
+                try {
+                    t.join();
+                } catch(InterruptedException ex) {
+                    attemptToLogException(ex, "GUI.loadFailed", "GUI.loadFailedNoLog", null, null);
                 }
-                return;
             }
+            return;
         }
     }
 
@@ -3987,6 +3991,13 @@ public class NewRandomizerGUI {
             String[] commandArgs = Arrays.copyOfRange(args, 1, args.length);
             int exitCode = CliRandomizer.invoke(commandArgs);
             System.exit(exitCode);
+        } else if (firstCliArg.equals("server")) {
+            // the server keeps running after invoke returns, unless it failed to start
+            String[] commandArgs = Arrays.copyOfRange(args, 1, args.length);
+            int exitCode = RandomizerServer.invoke(commandArgs);
+            if (exitCode != 0) {
+                System.exit(exitCode);
+            }
         } else {
             launcherInput = firstCliArg;
             if (launcherInput.equals("please-use-the-launcher")) usedLauncher = true;
@@ -25,15 +25,24 @@ package com.dabomstew.pkrandom.newnds;
 /*----------------------------------------------------------------------------*/
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
 import java.util.TreeMap;
 
+import com.dabomstew.pkrandom.FileFunctions;
+
+// Archives are parsed lazily: each file stays a read-only slice of the data the archive was read
+// from until it is first taken out of files, which is when it is copied, since callers are free
+// to modify what they get. Files that are never taken out are copied straight from their slice
+// when the archive is rebuilt, so the data must not change while the archive is in use.
 public class NARCArchive {
 
     private List<String> filenames = new ArrayList<>();
-    public List<byte[]> files = new ArrayList<>();
+    public List<byte[]> files = new FileList();
 
     private boolean hasFilenames = false;
 
@@ -42,36 +51,40 @@ public class NARCArchive {
     }
 
     public NARCArchive(byte[] data) throws IOException {
-        Map<String, byte[]> frames = readNitroFrames(data);
+        this(ByteBuffer.wrap(data));
+    }
+
+    // Nothing is copied out of data, so it can be a slice of the ROM itself
+    public NARCArchive(ByteBuffer data) throws IOException {
+        Map<String, ByteBuffer> frames = readNitroFrames(data.asReadOnlyBuffer());
         if (!frames.containsKey("FATB") || !frames.containsKey("FNTB") || !frames.containsKey("FIMG")) {
             throw new IOException("Not a valid narc file");
         }
 
         // File contents
-        byte[] fatbframe = frames.get("FATB");
-        byte[] fimgframe = frames.get("FIMG");
+        ByteBuffer fatbframe = frames.get("FATB");
+        ByteBuffer fimgframe = frames.get("FIMG");
+        FileList fileList = (FileList) files;
         int fileCount = readLong(fatbframe, 0);
         for (int i = 0; i < fileCount; i++) {
             int startOffset = readLong(fatbframe, 4 + i * 8);
             int endOffset = readLong(fatbframe, 8 + i * 8);
             int length = (endOffset - startOffset);
-            byte[] thisFile = new byte[length];
-            System.arraycopy(fimgframe, startOffset, thisFile, 0, length);
-            files.add(thisFile);
+            fileList.addSlice(FileFunctions.slice(fimgframe, startOffset, length));
         }
 
         // Filenames?
-        byte[] fntbframe = frames.get("FNTB");
+        ByteBuffer fntbframe = frames.get("FNTB");
         int unk1 = readLong(fntbframe, 0);
         if (unk1 == 8) {
             // Filenames exist
             hasFilenames = true;
             int offset = 8;
             for (int i = 0; i < fileCount; i++) {
-                int fnLength = (fntbframe[offset] & 0xFF);
+                int fnLength = (fntbframe.get(offset) & 0xFF);
                 offset++;
                 byte[] filenameBA = new byte[fnLength];
-                System.arraycopy(fntbframe, offset, filenameBA, 0, fnLength);
+                FileFunctions.getBytes(fntbframe, offset, filenameBA);
                 String filename = new String(filenameBA, "US-ASCII");
                 filenames.add(filename);
             }
@@ -85,9 +98,10 @@ public class NARCArchive {
 
     public byte[] getBytes() throws IOException {
         // Get bytes required for FIMG frame
+        FileList fileList = (FileList) files;
         int bytesRequired = 0;
-        for (byte[] file : files) {
-            bytesRequired += Math.ceil(file.length / 4.0) * 4;
+        for (int i = 0; i < fileList.size(); i++) {
+            bytesRequired += Math.ceil(fileList.length(i) / 4.0) * 4;
         }
         // FIMG frame & FATB frame build
 
@@ -112,14 +126,14 @@ public class NARCArchive {
 
         writeLong(fatbFrame, 8, files.size());
         for (int i = 0; i < files.size(); i++) {
-            byte[] file = files.get(i);
-            int bytesRequiredForFile = (int) (Math.ceil(file.length / 4.0) * 4);
-            System.arraycopy(file, 0, fimgFrame, offset + 8, file.length);
-            for (int filler = file.length; filler < bytesRequiredForFile; filler++) {
+            int fileLength = fileList.length(i);
+            int bytesRequiredForFile = (int) (Math.ceil(fileLength / 4.0) * 4);
+            fileList.copyTo(i, fimgFrame, offset + 8);
+            for (int filler = fileLength; filler < bytesRequiredForFile; filler++) {
                 fimgFrame[offset + 8 + filler] = (byte) 0xFF;
             }
             writeLong(fatbFrame, 12 + i * 8, offset);
-            writeLong(fatbFrame, 16 + i * 8, offset + file.length);
+            writeLong(fatbFrame, 16 + i * 8, offset + fileLength);
             offset += bytesRequiredForFile;
         }
 
@@ -172,39 +186,38 @@ public class NARCArchive {
         return nitroFile;
     }
 
-    private Map<String, byte[]> readNitroFrames(byte[] data) throws IOException {
+    private Map<String, ByteBuffer> readNitroFrames(ByteBuffer data) throws IOException {
 
         // Read the number of frames
         int frameCount = readWord(data, 0x0E);
 
         // each frame
         int offset = 0x10;
-        Map<String, byte[]> frames = new TreeMap<>();
+        Map<String, ByteBuffer> frames = new TreeMap<>();
         for (int i = 0; i < frameCount; i++) {
-            byte[] magic = new byte[] { data[offset + 3], data[offset + 2], data[offset + 1], data[offset] };
+            byte[] magic = new byte[] { data.get(offset + 3), data.get(offset + 2), data.get(offset + 1),
+                    data.get(offset) };
             String magicS = new String(magic, "US-ASCII");
 
             int frame_size = readLong(data, offset + 4);
             // Patch for BB/VW and other DS hacks which don't update
             // the size of their expanded NARCs correctly
-            if (i == frameCount - 1 && offset + frame_size < data.length) {
-                frame_size = data.length - offset;
+            if (i == frameCount - 1 && offset + frame_size < data.limit()) {
+                frame_size = data.limit() - offset;
             }
-            byte[] frame = new byte[frame_size - 8];
-            System.arraycopy(data, offset + 8, frame, 0, frame_size - 8);
-            frames.put(magicS, frame);
+            frames.put(magicS, FileFunctions.slice(data, offset + 8, frame_size - 8));
             offset += frame_size;
         }
         return frames;
     }
 
-    private int readWord(byte[] data, int offset) {
-        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    private int readWord(ByteBuffer data, int offset) {
+        return (data.get(offset) & 0xFF) | ((data.get(offset + 1) & 0xFF) << 8);
     }
 
-    private int readLong(byte[] data, int offset) {
-        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16)
-                | ((data[offset + 3] & 0xFF) << 24);
+    private int readLong(ByteBuffer data, int offset) {
+        return (data.get(offset) & 0xFF) | ((data.get(offset + 1) & 0xFF) << 8)
+                | ((data.get(offset + 2) & 0xFF) << 16) | ((data.get(offset + 3) & 0xFF) << 24);
     }
 
     private void writeWord(byte[] data, int offset, int value) {
@@ -219,4 +232,70 @@ public class NARCArchive {
         data[offset + 3] = (byte) ((value >> 24) & 0xFF);
     }
 
+    // Holds each file as either its slice of the original archive or, once it has been taken out
+    // or replaced, as an array
+    private static class FileList extends AbstractList<byte[]> implements RandomAccess {
+
+        private final List<ByteBuffer> slices = new ArrayList<>();
+        private final List<byte[]> contents = new ArrayList<>();
+
+        private void addSlice(ByteBuffer slice) {
+            slices.add(slice);
+            contents.add(null);
+        }
+
+        private int length(int index) {
+            ByteBuffer slice = slices.get(index);
+            return slice != null ? slice.limit() : contents.get(index).length;
+        }
+
+        private void copyTo(int index, byte[] dest, int offset) {
+            ByteBuffer slice = slices.get(index);
+            if (slice != null) {
+                FileFunctions.getBytes(slice, 0, dest, offset, slice.limit());
+            } else {
+                byte[] file = contents.get(index);
+                System.arraycopy(file, 0, dest, offset, file.length);
+            }
+        }
+
+        @Override
+        public byte[] get(int index) {
+            ByteBuffer slice = slices.get(index);
+            if (slice != null) {
+                byte[] file = new byte[slice.limit()];
+                FileFunctions.getBytes(slice, 0, file);
+                contents.set(index, file);
+                slices.set(index, null);
+            }
+            return contents.get(index);
+        }
+
+        // Replacing or removing a file that was never taken out does not copy it, so the previous
+        // file is only returned if it has been taken out before, and is null otherwise
+        @Override
+        public byte[] set(int index, byte[] file) {
+            slices.set(index, null);
+            return contents.set(index, file);
+        }
+
+        @Override
+        public void add(int index, byte[] file) {
+            slices.add(index, null);
+            contents.add(index, file);
+            modCount++;
+        }
+
+        @Override
+        public byte[] remove(int index) {
+            slices.remove(index);
+            modCount++;
+            return contents.remove(index);
+        }
+
+        @Override
+        public int size() {
+            return contents.size();
+        }
+    }
 }
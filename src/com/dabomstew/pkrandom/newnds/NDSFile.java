@@ -1,11 +1,9 @@
 package com.dabomstew.pkrandom.newnds;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
-import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RomIOEvent;
 
 /*----------------------------------------------------------------------------*/
 /*--  NDSFile.java - an entry in the FAT/FNT filesystem                     --*/
@@ -34,9 +32,7 @@ public class NDSFile {
     public int offset, size;
     public int fileID;
     public String fullPath;
-    private Extracted status = Extracted.NOT;
-    private String extFilename;
-    public byte[] data;
+    private boolean extracted;
     public long originalCRC;
 
     public NDSFile(NDSRom parent) {
@@ -44,76 +40,66 @@ public class NDSFile {
     }
 
     public byte[] getContents() throws IOException {
-        if (this.status == Extracted.NOT) {
+        RomIOEvent event = RomIOEvent.start("NDS file read", fullPath);
+        byte[] contents = readContents();
+        event.finish(contents.length);
+        return contents;
+    }
+
+    private byte[] readContents() throws IOException {
+        if (!extracted) {
             // extract file
-            parent.reopenROM();
-            RandomAccessFile rom = parent.getBaseRom();
-            byte[] buf = new byte[this.size];
-            rom.seek(this.offset);
-            rom.readFully(buf);
-            originalCRC = FileFunctions.getCRC32(buf);
-            if (parent.isWritingEnabled()) {
-                // make a file
-                String tmpDir = parent.getTmpFolder();
-                this.extFilename = fullPath.replaceAll("[^A-Za-z0-9_]+", "");
-                File tmpFile = new File(tmpDir + extFilename);
-                FileOutputStream fos = new FileOutputStream(tmpFile);
-                fos.write(buf);
-                fos.close();
-                tmpFile.deleteOnExit();
-                this.status = Extracted.TO_FILE;
-                this.data = null;
-                return buf;
-            } else {
-                this.status = Extracted.TO_RAM;
-                this.data = buf;
-                byte[] newcopy = new byte[buf.length];
-                System.arraycopy(buf, 0, newcopy, 0, buf.length);
-                return newcopy;
-            }
-        } else if (this.status == Extracted.TO_RAM) {
-            byte[] newcopy = new byte[this.data.length];
-            System.arraycopy(this.data, 0, newcopy, 0, this.data.length);
-            return newcopy;
-        } else {
-            String tmpDir = parent.getTmpFolder();
-            return FileFunctions.readFileFullyIntoBuffer(tmpDir + this.extFilename);
+            ByteBuffer original = parent.originalSlice(this.offset, this.size);
+            originalCRC = NDSRom.getCRC32(original);
+            byte[] buf = parent.readOriginalFile(this.offset, this.size);
+            parent.getContentStore().put(storeKey(), buf);
+            extracted = true;
+            return buf;
+        }
+        return parent.getContentStore().get(storeKey());
+    }
+
+    // Until the file is changed, this is a read-only slice of the original ROM and nothing is
+    // copied or extracted
+    public ByteBuffer getContentsBuffer() throws IOException {
+        if (extracted) {
+            return ByteBuffer.wrap(getContents());
+        }
+        RomIOEvent event = RomIOEvent.start("NDS file read", fullPath);
+        ByteBuffer original = parent.originalSlice(this.offset, this.size);
+        if (originalCRC == 0) {
+            originalCRC = NDSRom.getCRC32(original);
         }
+        event.finish(this.size);
+        return original.asReadOnlyBuffer().order(original.order());
     }
 
     public void writeOverride(byte[] data) throws IOException {
-        if (status == Extracted.NOT) {
+        if (!extracted) {
             // temp extract
             getContents();
         }
-        if (status == Extracted.TO_FILE) {
-            String tmpDir = parent.getTmpFolder();
-            FileOutputStream fos = new FileOutputStream(new File(tmpDir + this.extFilename));
-            fos.write(data);
-            fos.close();
-        } else {
-            if (this.data.length == data.length) {
-                // copy new in
-                System.arraycopy(data, 0, this.data, 0, data.length);
-            } else {
-                // make new array
-                this.data = null;
-                this.data = new byte[data.length];
-                System.arraycopy(data, 0, this.data, 0, data.length);
-            }
+        parent.getContentStore().put(storeKey(), data);
+    }
+
+    // returns -1 if no override
+    public long getOverrideLength() {
+        if (!extracted) {
+            return -1;
         }
+        return parent.getContentStore().length(storeKey());
     }
 
     // returns null if no override
     public byte[] getOverrideContents() throws IOException {
-        if (status == Extracted.NOT) {
+        if (!extracted) {
             return null;
         }
         return getContents();
     }
 
-    private enum Extracted {
-        NOT, TO_FILE, TO_RAM
+    private String storeKey() {
+        return "file:" + fullPath;
     }
 
 }
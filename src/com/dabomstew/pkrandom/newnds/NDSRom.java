@@ -1,13 +1,22 @@
 package com.dabomstew.pkrandom.newnds;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.zip.CRC32;
 
-import com.dabomstew.pkrandom.SysConstants;
+import com.dabomstew.pkrandom.BPSPatch;
+import com.dabomstew.pkrandom.ContentStore;
 import com.dabomstew.pkrandom.FileFunctions;
 import com.dabomstew.pkrandom.RomFunctions;
+import com.dabomstew.pkrandom.RomIOEvent;
 
 import com.dabomstew.pkrandom.exceptions.CannotWriteToLocationException;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
@@ -39,106 +48,103 @@ public class NDSRom {
     private String romCode;
     private byte version;
     private String romFilename;
-    private RandomAccessFile baseRom;
-    private boolean romOpen;
     private Map<String, NDSFile> files;
     private Map<Integer, NDSFile> filesByID;
     private Map<Integer, NDSY9Entry> arm9overlaysByFileID;
     private NDSY9Entry[] arm9overlays;
     private byte[] fat;
-    private String tmpFolder;
-    private boolean writingEnabled;
+    private final ContentStore contents;
     private boolean arm9_open, arm9_changed, arm9_has_footer;
     private boolean arm9_compressed;
     private int arm9_ramoffset;
     private int arm9_szoffset;
     private byte[] arm9_footer;
-    private byte[] arm9_ramstored;
     private long originalArm9CRC;
+    private final OriginalData original;
 
     private static final int arm9_align = 0x1FF, arm7_align = 0x1FF;
     private static final int fnt_align = 0x1FF, fat_align = 0x1FF;
     private static final int banner_align = 0x1FF, file_align = 0x1FF;
 
     public NDSRom(String filename) throws IOException {
+        this(filename, ContentStore.getDefaultBudget());
+    }
+
+    // Files that are opened are kept in memory up to contentBudget bytes, and in temp files
+    // past that
+    public NDSRom(String filename, long contentBudget) throws IOException {
         this.romFilename = filename;
-        this.baseRom = new RandomAccessFile(filename, "r");
-        this.romOpen = true;
-        // TMP folder?
-        String rawFilename = new File(filename).getName();
-        String dataFolder = "tmp_" + rawFilename.substring(0, rawFilename.lastIndexOf('.'));
-        // remove nonsensical chars
-        dataFolder = dataFolder.replaceAll("[^A-Za-z0-9_]+", "");
-        File tmpFolder = new File(SysConstants.ROOT_PATH + dataFolder);
-        tmpFolder.mkdir();
-        if (tmpFolder.canWrite()) {
-            writingEnabled = true;
-            this.tmpFolder = SysConstants.ROOT_PATH + dataFolder + File.separator;
-            tmpFolder.deleteOnExit();
-        } else {
-            writingEnabled = false;
-        }
+        this.original = new OriginalData(filename);
+        this.contents = new ContentStore(contentBudget);
         readFileSystem();
         arm9_open = false;
         arm9_changed = false;
-        arm9_ramstored = null;
     }
 
-    public void reopenROM() throws IOException {
-        if (!this.romOpen) {
-            this.baseRom = new RandomAccessFile(this.romFilename, "r");
-            this.romOpen = true;
+    // Forks an already loaded ROM. The fork reuses the parsed filesystem and shares the original
+    // file contents with its base, so only the files it changes are copied.
+    public NDSRom(NDSRom base, long contentBudget) throws IOException {
+        this.romFilename = base.romFilename;
+        this.original = base.original;
+        this.contents = new ContentStore(contentBudget);
+        this.romCode = base.romCode;
+        this.version = base.version;
+        this.arm9_ramoffset = base.arm9_ramoffset;
+        this.fat = base.fat;
+        files = new HashMap<>();
+        filesByID = new HashMap<>();
+        for (NDSFile baseFile : base.filesByID.values()) {
+            NDSFile nf = new NDSFile(this);
+            nf.offset = baseFile.offset;
+            nf.size = baseFile.size;
+            nf.fullPath = baseFile.fullPath;
+            nf.fileID = baseFile.fileID;
+            files.put(nf.fullPath, nf);
+            filesByID.put(nf.fileID, nf);
         }
+        readOverlays(original.y9table);
+        arm9_open = false;
+        arm9_changed = false;
     }
 
+    // The ROM is only kept open through its mapping, which is released once it is no longer
+    // used by this ROM or any fork, so there is nothing to close
     public void closeROM() throws IOException {
-        if (this.romOpen && this.baseRom != null) {
-            this.baseRom.close();
-            this.baseRom = null;
-            this.romOpen = false;
-        }
     }
 
     private void readFileSystem() throws IOException {
-        // read rom code
-        baseRom.seek(0x0C);
+        ByteBuffer image = original.image;
 
+        // read rom code
         byte[] sig = new byte[4];
-        baseRom.readFully(sig);
+        FileFunctions.getBytes(image, 0x0C, sig);
         this.romCode = new String(sig, "US-ASCII");
 
-        baseRom.seek(0x1E);
-        this.version = baseRom.readByte();
+        this.version = image.get(0x1E);
+        this.arm9_ramoffset = image.getInt(0x28);
 
-        baseRom.seek(0x28);
-        this.arm9_ramoffset = readFromFile(baseRom, 4);
-
-        baseRom.seek(0x40);
-        int fntOffset = readFromFile(baseRom, 4);
-        readFromFile(baseRom, 4); // fntSize not needed
-        int fatOffset = readFromFile(baseRom, 4);
-        int fatSize = readFromFile(baseRom, 4);
+        int fntOffset = image.getInt(0x40);
+        int fatOffset = image.getInt(0x48);
+        int fatSize = image.getInt(0x4C);
 
         // Read full FAT table
-        baseRom.seek(fatOffset);
         fat = new byte[fatSize];
-        baseRom.readFully(fat);
+        FileFunctions.getBytes(image, fatOffset, fat);
 
         Map<Integer, String> directoryPaths = new HashMap<>();
         directoryPaths.put(0xF000, "");
-        int dircount = readFromFile(baseRom, fntOffset + 0x6, 2);
+        int dircount = image.getShort(fntOffset + 0x6) & 0xFFFF;
         files = new HashMap<>();
         filesByID = new HashMap<>();
 
         // read fnt table
-        baseRom.seek(fntOffset);
         int[] subTableOffsets = new int[dircount];
         int[] firstFileIDs = new int[dircount];
         int[] parentDirIDs = new int[dircount];
         for (int i = 0; i < dircount && i < 0x1000; i++) {
-            subTableOffsets[i] = readFromFile(baseRom, 4) + fntOffset;
-            firstFileIDs[i] = readFromFile(baseRom, 2);
-            parentDirIDs[i] = readFromFile(baseRom, 2);
+            subTableOffsets[i] = image.getInt(fntOffset + i * 8) + fntOffset;
+            firstFileIDs[i] = image.getShort(fntOffset + i * 8 + 4) & 0xFFFF;
+            parentDirIDs[i] = image.getShort(fntOffset + i * 8 + 6) & 0xFFFF;
         }
 
         // get dirnames
@@ -195,14 +201,18 @@ public class NDSRom {
         }
 
         // arm9 overlays
-        int arm9_ovl_table_offset = readFromFile(baseRom, 0x50, 4);
-        int arm9_ovl_table_size = readFromFile(baseRom, 0x54, 4);
-        int arm9_ovl_count = arm9_ovl_table_size / 32;
+        int arm9_ovl_table_offset = image.getInt(0x50);
+        int arm9_ovl_table_size = image.getInt(0x54);
         byte[] y9table = new byte[arm9_ovl_table_size];
+        FileFunctions.getBytes(image, arm9_ovl_table_offset, y9table);
+        original.y9table = y9table;
+        readOverlays(y9table);
+    }
+
+    private void readOverlays(byte[] y9table) {
+        int arm9_ovl_count = y9table.length / 32;
         arm9overlays = new NDSY9Entry[arm9_ovl_count];
         arm9overlaysByFileID = new HashMap<>();
-        baseRom.seek(arm9_ovl_table_offset);
-        baseRom.readFully(y9table);
 
         // parse overlays
         for (int i = 0; i < arm9_ovl_count; i++) {
@@ -228,19 +238,45 @@ public class NDSRom {
     }
 
     public void saveTo(String filename) throws IOException {
-        this.reopenROM();
+        RomIOEvent event = RomIOEvent.start("NDS save", filename);
+        try (FileChannel target = FileChannel.open(Paths.get(filename), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeTo(target);
+            event.finish(target.size());
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        writeTo(Channels.newChannel(out));
+        out.flush();
+    }
+
+    // The new ROM is written strictly in order, so out can be a pipe, a socket or a compressor.
+    // Every offset is planned before the first byte is written. Unchanged parts of the ROM are
+    // copied with transferTo, which lets the OS copy them without passing through the heap when
+    // out is a file.
+    public void writeTo(WritableByteChannel out) throws IOException {
+        Layout layout = planLayout();
+        try (FileChannel source = FileChannel.open(Paths.get(romFilename), StandardOpenOption.READ)) {
+            layout.write(source, out);
+        }
+    }
 
-        // Initialize new ROM
-        RandomAccessFile fNew = new RandomAccessFile(filename, "rw");
+    // Works out where everything goes in the new ROM, and builds the new header, FAT and y9 table
+    private Layout planLayout() throws IOException {
+        ByteBuffer image = original.image;
+        Layout layout = new Layout();
 
-        int headersize = readFromFile(this.baseRom, 0x84, 4);
-        this.baseRom.seek(0);
-        copy(this.baseRom, fNew, headersize);
+        int headersize = image.getInt(0x84);
+        byte[] header = new byte[headersize];
+        FileFunctions.getBytes(image, 0, header);
+        layout.add(0, header, 0, headersize);
 
         // arm9
-        int arm9_offset = ((int) (fNew.getFilePointer() + arm9_align)) & (~arm9_align);
-        int old_arm9_offset = readFromFile(this.baseRom, 0x20, 4);
-        int arm9_size = readFromFile(this.baseRom, 0x2C, 4);
+        int arm9_offset = (headersize + arm9_align) & (~arm9_align);
+        int old_arm9_offset = image.getInt(0x20);
+        int arm9_size = image.getInt(0x2C);
+        int arm9_end;
         if (arm9_open && arm9_changed) {
             // custom arm9
             byte[] newARM9 = getARM9();
@@ -253,98 +289,92 @@ public class NDSRom {
             }
             arm9_size = newARM9.length;
             // copy new arm9
-            fNew.seek(arm9_offset);
-            fNew.write(newARM9);
+            int old_arm9_size = image.getInt(0x2C);
+            layout.add(arm9_offset, newARM9, old_arm9_offset, old_arm9_size);
+            arm9_end = arm9_offset + arm9_size;
             // footer?
             if (arm9_has_footer) {
-                fNew.write(arm9_footer);
+                layout.add(arm9_end, arm9_footer, old_arm9_offset + old_arm9_size, arm9_footer.length);
+                arm9_end += arm9_footer.length;
             }
-
         } else {
             // copy arm9+footer
-            this.baseRom.seek(old_arm9_offset);
-            fNew.seek(arm9_offset);
-            copy(this.baseRom, fNew, arm9_size + 12);
+            layout.copy(old_arm9_offset, arm9_offset, arm9_size + 12);
+            arm9_end = arm9_offset + arm9_size + 12;
         }
 
         // arm9 ovl
-        int arm9_ovl_offset = (int) fNew.getFilePointer();
+        int arm9_ovl_offset = arm9_end;
         int arm9_ovl_size = arm9overlays.length * 32;
-
-        // don't actually write arm9 ovl yet
+        byte[] y9table = new byte[arm9_ovl_size];
+        layout.add(arm9_ovl_offset, y9table, image.getInt(0x50), image.getInt(0x54));
 
         // arm7
         int arm7_offset = arm9_ovl_offset + arm9_ovl_size + arm7_align & (~arm7_align);
-        int old_arm7_offset = readFromFile(this.baseRom, 0x30, 4);
-        int arm7_size = readFromFile(this.baseRom, 0x3C, 4);
+        int old_arm7_offset = image.getInt(0x30);
+        int arm7_size = image.getInt(0x3C);
         // copy arm7
-        this.baseRom.seek(old_arm7_offset);
-        fNew.seek(arm7_offset);
-        copy(this.baseRom, fNew, arm7_size);
+        layout.copy(old_arm7_offset, arm7_offset, arm7_size);
 
         // arm7 ovl
-        int arm7_ovl_offset = (int) fNew.getFilePointer();
-        int old_arm7_ovl_offset = readFromFile(this.baseRom, 0x58, 4);
-        int arm7_ovl_size = readFromFile(this.baseRom, 0x5C, 4);
+        int arm7_ovl_offset = arm7_offset + arm7_size;
+        int old_arm7_ovl_offset = image.getInt(0x58);
+        int arm7_ovl_size = image.getInt(0x5C);
 
         // copy arm7 ovl
-        this.baseRom.seek(old_arm7_ovl_offset);
-        fNew.seek(arm7_ovl_offset);
-        copy(this.baseRom, fNew, arm7_ovl_size);
+        layout.copy(old_arm7_ovl_offset, arm7_ovl_offset, arm7_ovl_size);
 
         // banner
-        int banner_offset = ((int) (fNew.getFilePointer() + banner_align)) & (~banner_align);
-        int old_banner_offset = readFromFile(this.baseRom, 0x68, 4);
+        int banner_offset = (arm7_ovl_offset + arm7_ovl_size + banner_align) & (~banner_align);
+        int old_banner_offset = image.getInt(0x68);
         int banner_size = 0x840;
         // copy banner
-        this.baseRom.seek(old_banner_offset);
-        fNew.seek(banner_offset);
-        copy(this.baseRom, fNew, banner_size);
+        layout.copy(old_banner_offset, banner_offset, banner_size);
 
         // filename table (doesn't change)
-        int fnt_offset = ((int) (fNew.getFilePointer() + fnt_align)) & (~fnt_align);
-        int old_fnt_offset = readFromFile(this.baseRom, 0x40, 4);
-        int fnt_size = readFromFile(this.baseRom, 0x44, 4);
+        int fnt_offset = (banner_offset + banner_size + fnt_align) & (~fnt_align);
+        int old_fnt_offset = image.getInt(0x40);
+        int fnt_size = image.getInt(0x44);
         // copy fnt
-        this.baseRom.seek(old_fnt_offset);
-        fNew.seek(fnt_offset);
-        copy(this.baseRom, fNew, fnt_size);
+        layout.copy(old_fnt_offset, fnt_offset, fnt_size);
 
         // make space for the FAT table
-        int fat_offset = ((int) (fNew.getFilePointer() + fat_align)) & (~fat_align);
+        int fat_offset = (fnt_offset + fnt_size + fat_align) & (~fat_align);
         int fat_size = fat.length;
+        byte[] newfat = new byte[fat.length];
+        layout.add(fat_offset, newfat, image.getInt(0x48), image.getInt(0x4C));
 
         // Now for actual files
-        // Make a new FAT as needed
-        // also make a new y9 table
-        byte[] newfat = new byte[fat.length];
-        byte[] y9table = new byte[arm9overlays.length * 32];
+        // Fill in the new FAT and y9 table as we go
         int base_offset = fat_offset + fat_size;
         int filecount = fat.length / 8;
         for (int fid = 0; fid < filecount; fid++) {
             int offset_of_file = (base_offset + file_align) & (~file_align);
+            int file_starts = readFromByteArr(fat, fid * 8, 4);
+            int file_ends = readFromByteArr(fat, fid * 8 + 4, 4);
             int file_len = 0;
             boolean copiedCustom = false;
             if (filesByID.containsKey(fid)) {
-                byte[] customContents = filesByID.get(fid).getOverrideContents();
-                if (customContents != null) {
+                NDSFile file = filesByID.get(fid);
+                long customLength = file.getOverrideLength();
+                if (customLength >= 0) {
                     // copy custom
-                    fNew.seek(offset_of_file);
-                    fNew.write(customContents);
+                    layout.add(offset_of_file, customLength, file::getOverrideContents, file_starts,
+                            file_ends - file_starts);
                     copiedCustom = true;
-                    file_len = customContents.length;
+                    file_len = (int) customLength;
                 }
             }
             if (arm9overlaysByFileID.containsKey(fid)) {
                 NDSY9Entry entry = arm9overlaysByFileID.get(fid);
                 int overlay_id = entry.overlay_id;
-                byte[] customContents = entry.getOverrideContents();
-                if (customContents != null) {
+                long customLength = entry.getOverrideLength();
+                if (customLength >= 0) {
                     // copy custom
-                    fNew.seek(offset_of_file);
-                    fNew.write(customContents);
+                    layout.add(offset_of_file, customLength, entry::getOverrideContents, file_starts,
+                            file_ends - file_starts);
                     copiedCustom = true;
-                    file_len = customContents.length;
+                    file_len = (int) customLength;
                 }
                 // regardless, fill in y9 table
                 writeToByteArr(y9table, overlay_id * 32, 4, overlay_id);
@@ -359,12 +389,8 @@ public class NDSRom {
             }
             if (!copiedCustom) {
                 // copy from original ROM
-                int file_starts = readFromByteArr(fat, fid * 8, 4);
-                int file_ends = readFromByteArr(fat, fid * 8 + 4, 4);
                 file_len = file_ends - file_starts;
-                this.baseRom.seek(file_starts);
-                fNew.seek(offset_of_file);
-                copy(this.baseRom, fNew, file_len);
+                layout.copy(file_starts, offset_of_file, file_len);
             }
             // write to new FAT
             writeToByteArr(newfat, fid * 8, 4, offset_of_file);
@@ -373,23 +399,12 @@ public class NDSRom {
             base_offset = offset_of_file + file_len;
         }
 
-        // write new FAT table
-        fNew.seek(fat_offset);
-        fNew.write(newfat);
-
-        // write y9 table
-        fNew.seek(arm9_ovl_offset);
-        fNew.write(y9table);
-
         // tidy up ending
         // base_offset is the end of the last file
         int newfilesize = base_offset;
         newfilesize = (newfilesize + 3) & ~3;
         int application_end_offset = newfilesize;
-        if (newfilesize != base_offset) {
-            fNew.seek(newfilesize - 1);
-            fNew.write(0);
-        }
+        layout.length = newfilesize;
 
         // calculate device capacity;
         newfilesize |= newfilesize >> 16;
@@ -410,38 +425,36 @@ public class NDSRom {
         int devicecap = ((devcap < 0) ? 0 : devcap);
 
         // Update offsets in ROM header
-        writeToFile(fNew, 0x20, 4, arm9_offset);
-        writeToFile(fNew, 0x2C, 4, arm9_size);
-        writeToFile(fNew, 0x30, 4, arm7_offset);
-        writeToFile(fNew, 0x3C, 4, arm7_size);
-        writeToFile(fNew, 0x40, 4, fnt_offset);
-        writeToFile(fNew, 0x48, 4, fat_offset);
-        writeToFile(fNew, 0x50, 4, arm9_ovl_offset);
-        writeToFile(fNew, 0x58, 4, arm7_ovl_offset);
-        writeToFile(fNew, 0x68, 4, banner_offset);
-        writeToFile(fNew, 0x80, 4, application_end_offset);
-        writeToFile(fNew, 0x14, 1, devicecap);
+        writeToByteArr(header, 0x20, 4, arm9_offset);
+        writeToByteArr(header, 0x2C, 4, arm9_size);
+        writeToByteArr(header, 0x30, 4, arm7_offset);
+        writeToByteArr(header, 0x3C, 4, arm7_size);
+        writeToByteArr(header, 0x40, 4, fnt_offset);
+        writeToByteArr(header, 0x48, 4, fat_offset);
+        writeToByteArr(header, 0x50, 4, arm9_ovl_offset);
+        writeToByteArr(header, 0x58, 4, arm7_ovl_offset);
+        writeToByteArr(header, 0x68, 4, banner_offset);
+        writeToByteArr(header, 0x80, 4, application_end_offset);
+        writeToByteArr(header, 0x14, 1, devicecap);
 
         // Update header CRC
-        fNew.seek(0);
-        byte[] headerForCRC = new byte[0x15E];
-        fNew.readFully(headerForCRC);
-        short crc = CRC16.calculate(headerForCRC, 0, 0x15E);
-        writeToFile(fNew, 0x15E, 2, (crc & 0xFFFF));
-
-        // done
-        fNew.close();
-        closeROM();
+        short crc = CRC16.calculate(header, 0, 0x15E);
+        writeToByteArr(header, 0x15E, 2, (crc & 0xFFFF));
+
+        return layout;
     }
 
-    private void copy(RandomAccessFile from, RandomAccessFile to, int bytes) throws IOException {
-        int sizeof_copybuf = Math.min(256 * 1024, bytes);
-        byte[] copybuf = new byte[sizeof_copybuf];
-        while (bytes > 0) {
-            int size2 = (bytes >= sizeof_copybuf) ? sizeof_copybuf : bytes;
-            int read = from.read(copybuf, 0, size2);
-            to.write(copybuf, 0, read);
-            bytes -= read;
+    // The patch is written straight from the layout of the new ROM, so nothing has to be built
+    // or searched for: unchanged files are copies from wherever they were in the original ROM,
+    // and new contents are only compared to what they replace.
+    public void saveAsPatch(String filename) throws IOException {
+        Layout layout = planLayout();
+        RomIOEvent event = RomIOEvent.start("NDS patch", filename);
+        try (FileOutputStream out = new FileOutputStream(filename)) {
+            BPSPatch patch = new BPSPatch(original.image, layout.length, out);
+            layout.writePatch(patch);
+            patch.finish();
+            event.finish(layout.length, out.getChannel().size());
         }
     }
 
@@ -463,6 +476,16 @@ public class NDSRom {
         }
     }
 
+    // Original contents are returned as a read-only slice of the mapped ROM, without copying
+    // them; changed contents as a buffer wrapping a copy. Returns null if file doesn't exist.
+    public ByteBuffer getFileBuffer(String filename) throws IOException {
+        if (files.containsKey(filename)) {
+            return files.get(filename).getContentsBuffer();
+        } else {
+            return null;
+        }
+    }
+
     public byte[] getOverlay(int number) throws IOException {
         if (number >= 0 && number < arm9overlays.length) {
             return arm9overlays[number].getContents();
@@ -482,89 +505,111 @@ public class NDSRom {
     public byte[] getARM9() throws IOException {
         if (!arm9_open) {
             arm9_open = true;
-            this.reopenROM();
-            int arm9_offset = readFromFile(this.baseRom, 0x20, 4);
-            int arm9_size = readFromFile(this.baseRom, 0x2C, 4);
-            byte[] arm9 = new byte[arm9_size];
-            this.baseRom.seek(arm9_offset);
-            this.baseRom.readFully(arm9);
-            originalArm9CRC = FileFunctions.getCRC32(arm9);
-            // footer check
-            int nitrocode = readFromFile(this.baseRom, 4);
-            if (nitrocode == 0xDEC00621) {
-                // found a footer
-                arm9_footer = new byte[12];
-                writeToByteArr(arm9_footer, 0, 4, 0xDEC00621);
-                this.baseRom.readFully(arm9_footer, 4, 8);
-                arm9_has_footer = true;
-            } else {
-                arm9_has_footer = false;
-            }
-            // Any extras?
-            while ((readFromByteArr(arm9, arm9.length - 12, 4) == 0xDEC00621)
-                    || ((readFromByteArr(arm9, arm9.length - 12, 4) == 0
-                            && readFromByteArr(arm9, arm9.length - 8, 4) == 0 && readFromByteArr(arm9, arm9.length - 4,
-                            4) == 0))) {
-                if (!arm9_has_footer) {
+            byte[] arm9 = readOriginalARM9();
+
+            contents.put("arm9", arm9);
+            return arm9;
+        }
+        return contents.get("arm9");
+    }
+
+    // The decoded original arm9 is shared with every fork of this ROM, so it is only read and
+    // decompressed once.
+    private byte[] readOriginalARM9() throws IOException {
+        synchronized (original) {
+            if (original.arm9 == null) {
+                ByteBuffer image = original.image;
+                int arm9_offset = image.getInt(0x20);
+                int arm9_size = image.getInt(0x2C);
+                byte[] arm9 = new byte[arm9_size];
+                FileFunctions.getBytes(image, arm9_offset, arm9);
+                originalArm9CRC = FileFunctions.getCRC32(arm9);
+                // footer check
+                int nitrocode = image.getInt(arm9_offset + arm9_size);
+                if (nitrocode == 0xDEC00621) {
+                    // found a footer
+                    arm9_footer = new byte[12];
+                    writeToByteArr(arm9_footer, 0, 4, 0xDEC00621);
+                    FileFunctions.getBytes(image, arm9_offset + arm9_size + 4, arm9_footer, 4, 8);
                     arm9_has_footer = true;
-                    arm9_footer = new byte[0];
+                } else {
+                    arm9_has_footer = false;
                 }
-                byte[] newfooter = new byte[arm9_footer.length + 12];
-                System.arraycopy(arm9, arm9.length - 12, newfooter, 0, 12);
-                System.arraycopy(arm9_footer, 0, newfooter, 12, arm9_footer.length);
-                arm9_footer = newfooter;
-                byte[] newarm9 = new byte[arm9.length - 12];
-                System.arraycopy(arm9, 0, newarm9, 0, arm9.length - 12);
-                arm9 = newarm9;
-            }
-            // Compression?
-            arm9_compressed = false;
-            arm9_szoffset = 0;
-            if (((int) arm9[arm9.length - 5]) >= 0x08 && ((int) arm9[arm9.length - 5]) <= 0x0B) {
-                int compSize = readFromByteArr(arm9, arm9.length - 8, 3);
-                if (compSize > (arm9.length * 9 / 10) && compSize < (arm9.length * 11 / 10)) {
-                    arm9_compressed = true;
-                    byte[] compLength = new byte[4];
-                    writeToByteArr(compLength, 0, 4, arm9.length + arm9_ramoffset);
-                    List<Integer> foundOffsets = RomFunctions.search(arm9, compLength);
-                    if (foundOffsets.size() == 1) {
-                        arm9_szoffset = foundOffsets.get(0);
-                    } else {
-                        throw new RandomizerIOException("Could not read ARM9 size offset. May be a bad ROM.");
+                // Any extras?
+                while ((readFromByteArr(arm9, arm9.length - 12, 4) == 0xDEC00621)
+                        || ((readFromByteArr(arm9, arm9.length - 12, 4) == 0
+                                && readFromByteArr(arm9, arm9.length - 8, 4) == 0 && readFromByteArr(arm9, arm9.length - 4,
+                                4) == 0))) {
+                    if (!arm9_has_footer) {
+                        arm9_has_footer = true;
+                        arm9_footer = new byte[0];
+                    }
+                    byte[] newfooter = new byte[arm9_footer.length + 12];
+                    System.arraycopy(arm9, arm9.length - 12, newfooter, 0, 12);
+                    System.arraycopy(arm9_footer, 0, newfooter, 12, arm9_footer.length);
+                    arm9_footer = newfooter;
+                    byte[] newarm9 = new byte[arm9.length - 12];
+                    System.arraycopy(arm9, 0, newarm9, 0, arm9.length - 12);
+                    arm9 = newarm9;
+                }
+                // Compression?
+                arm9_compressed = false;
+                arm9_szoffset = 0;
+                if (((int) arm9[arm9.length - 5]) >= 0x08 && ((int) arm9[arm9.length - 5]) <= 0x0B) {
+                    int compSize = readFromByteArr(arm9, arm9.length - 8, 3);
+                    if (compSize > (arm9.length * 9 / 10) && compSize < (arm9.length * 11 / 10)) {
+                        arm9_compressed = true;
+                        byte[] compLength = new byte[4];
+                        writeToByteArr(compLength, 0, 4, arm9.length + arm9_ramoffset);
+                        List<Integer> foundOffsets = RomFunctions.search(arm9, compLength);
+                        if (foundOffsets.size() == 1) {
+                            arm9_szoffset = foundOffsets.get(0);
+                        } else {
+                            throw new RandomizerIOException("Could not read ARM9 size offset. May be a bad ROM.");
+                        }
                     }
                 }
-            }
-
-            if (arm9_compressed) {
-                arm9 = new BLZCoder(null).BLZ_DecodePub(arm9, "arm9.bin");
-            }
 
-            // Now actually make the copy or w/e
-            if (writingEnabled) {
-                File arm9file = new File(tmpFolder + "arm9.bin");
-                FileOutputStream fos = new FileOutputStream(arm9file);
-                fos.write(arm9);
-                fos.close();
-                arm9file.deleteOnExit();
-                this.arm9_ramstored = null;
+                if (arm9_compressed) {
+                    arm9 = new BLZCoder(null).BLZ_DecodePub(arm9, "arm9.bin");
+                }
+                original.arm9 = arm9.clone();
+                original.arm9CRC = originalArm9CRC;
+                original.arm9Footer = arm9_footer;
+                original.arm9HasFooter = arm9_has_footer;
+                original.arm9Compressed = arm9_compressed;
+                original.arm9SizeOffset = arm9_szoffset;
                 return arm9;
-            } else {
-                this.arm9_ramstored = arm9;
-                byte[] newcopy = new byte[arm9.length];
-                System.arraycopy(arm9, 0, newcopy, 0, arm9.length);
-                return newcopy;
-            }
-        } else {
-            if (writingEnabled) {
-                return FileFunctions.readFileFullyIntoBuffer(tmpFolder + "arm9.bin");
-            } else {
-                byte[] newcopy = new byte[this.arm9_ramstored.length];
-                System.arraycopy(this.arm9_ramstored, 0, newcopy, 0, this.arm9_ramstored.length);
-                return newcopy;
             }
+            originalArm9CRC = original.arm9CRC;
+            arm9_footer = original.arm9Footer;
+            arm9_has_footer = original.arm9HasFooter;
+            arm9_compressed = original.arm9Compressed;
+            arm9_szoffset = original.arm9SizeOffset;
+            return original.arm9.clone();
         }
     }
 
+    // A read-only view of original file contents, straight from the mapped ROM. The mapping is
+    // shared between the ROM and all of its forks, and its absolute reads are safe to use from
+    // several threads at once.
+    ByteBuffer originalSlice(int offset, int size) {
+        return FileFunctions.slice(original.image, offset, size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Callers always get their own copy
+    byte[] readOriginalFile(int offset, int size) {
+        byte[] contents = new byte[size];
+        FileFunctions.getBytes(original.image, offset, contents);
+        return contents;
+    }
+
+    static long getCRC32(ByteBuffer data) {
+        CRC32 checksum = new CRC32();
+        checksum.update(data.duplicate());
+        return checksum.getValue();
+    }
+
     // returns null if file doesn't exist
     public void writeFile(String filename, byte[] data) throws IOException {
         if (files.containsKey(filename)) {
@@ -583,40 +628,29 @@ public class NDSRom {
             getARM9();
         }
         arm9_changed = true;
-        if (writingEnabled) {
-            FileOutputStream fos = new FileOutputStream(new File(tmpFolder + "arm9.bin"));
-            fos.write(arm9);
-            fos.close();
-        } else {
-            if (this.arm9_ramstored.length == arm9.length) {
-                // copy new in
-                System.arraycopy(arm9, 0, this.arm9_ramstored, 0, arm9.length);
-            } else {
-                // make new array
-                this.arm9_ramstored = null;
-                this.arm9_ramstored = new byte[arm9.length];
-                System.arraycopy(arm9, 0, this.arm9_ramstored, 0, arm9.length);
-            }
-        }
+        contents.put("arm9", arm9);
     }
 
     private void firstPassDirectory(int dir, int subTableOffset, int firstFileID, String[] directoryNames,
             Map<Integer, String> filenames, Map<Integer, Integer> fileDirectories) throws IOException {
+        ByteBuffer image = original.image;
         // read subtable
-        baseRom.seek(subTableOffset);
+        int position = subTableOffset;
         while (true) {
-            int control = baseRom.read();
+            int control = image.get(position++) & 0xFF;
             if (control == 0x00) {
                 // done
                 break;
             }
             int namelen = control & 0x7F;
             byte[] rawname = new byte[namelen];
-            baseRom.readFully(rawname);
+            FileFunctions.getBytes(image, position, rawname);
+            position += namelen;
             String name = new String(rawname, "US-ASCII");
             if ((control & 0x80) > 0x00) {
                 // sub-directory
-                int subDirectoryID = readFromFile(baseRom, 2);
+                int subDirectoryID = image.getShort(position) & 0xFFFF;
+                position += 2;
                 directoryNames[subDirectoryID - 0xF000] = name;
             } else {
                 int fileID = firstFileID++;
@@ -652,16 +686,15 @@ public class NDSRom {
         }
     }
 
-    public String getTmpFolder() {
-        return tmpFolder;
-    }
-
-    public RandomAccessFile getBaseRom() {
-        return baseRom;
+    // Closes the ROM and drops everything extracted from it, for when the ROM will not be
+    // read from or saved again
+    public void dispose() throws IOException {
+        closeROM();
+        contents.dispose();
     }
 
-    public boolean isWritingEnabled() {
-        return writingEnabled;
+    ContentStore getContentStore() {
+        return contents;
     }
 
     private int readFromByteArr(byte[] data, int offset, int size) {
@@ -678,36 +711,179 @@ public class NDSRom {
         }
     }
 
-    private int readFromFile(RandomAccessFile file, int size) throws IOException {
-        return readFromFile(file, -1, size);
-    }
+    // The parts of a new ROM, in the order they are added, which is also their order in the ROM.
+    // Parts that replace something in the original ROM know where it was, and the gap after any
+    // such part is filled with whatever followed it in the original, so files keep their
+    // original padding and an unchanged ROM is copied exactly. Other gaps are zeros. A copy from
+    // the original ROM is merged into the copy before it when both are moved by the same amount,
+    // which leaves the output the same and means most of the ROM is written in a few large
+    // transfers.
+    private static class Layout {
+        private static final ByteBuffer ZEROS = ByteBuffer.allocateDirect(64 * 1024);
+
+        private final List<Part> parts = new ArrayList<>();
+        private long length;
+
+        private void add(long offset, byte[] data, long original, long originalSize) {
+            add(offset, data.length, () -> data, original, originalSize);
+        }
 
-    // use -1 offset to read from current position
-    // useful if you want to read blocks
-    private int readFromFile(RandomAccessFile file, int offset, int size) throws IOException {
-        byte[] buf = new byte[size];
-        if (offset >= 0)
-            file.seek(offset);
-        file.readFully(buf);
-        int result = 0;
-        for (int i = 0; i < size; i++) {
-            result |= (buf[i] & 0xFF) << (i * 8);
+        private void add(long offset, long size, Contents data, long original, long originalSize) {
+            parts.add(new Part(offset, size, data, original, originalSize));
+        }
+
+        private void copy(long from, long to, long size) {
+            if (size <= 0) {
+                return;
+            }
+            Part last = parts.isEmpty() ? null : parts.get(parts.size() - 1);
+            if (last != null && last.data == null && from - last.original == to - last.offset
+                    && to >= last.end()) {
+                last.size = to + size - last.offset;
+                last.originalSize = last.size;
+                return;
+            }
+            parts.add(new Part(to, size, null, from, size));
+        }
+
+        private void write(FileChannel source, WritableByteChannel out) throws IOException {
+            long position = 0;
+            long padding = -1;
+            for (Part part : parts) {
+                if (part.offset < position) {
+                    throw new IOException("Overlapping parts in new ROM at " + part.offset);
+                }
+                writePadding(source, out, padding, part.offset - position);
+                if (part.data != null) {
+                    writeFully(out, ByteBuffer.wrap(part.contents()));
+                } else {
+                    transfer(source, part.original, part.size, out);
+                }
+                position = part.end();
+                padding = part.paddingSource();
+            }
+            writePadding(source, out, padding, length - position);
+        }
+
+        private void writePatch(BPSPatch patch) throws IOException {
+            long position = 0;
+            long padding = -1;
+            for (Part part : parts) {
+                patchPadding(patch, padding, part.offset - position);
+                if (part.data != null) {
+                    patch.write(ByteBuffer.wrap(part.contents()), part.original);
+                } else {
+                    patch.copy(part.original, part.size);
+                }
+                position = part.end();
+                padding = part.paddingSource();
+            }
+            patchPadding(patch, padding, length - position);
+        }
+
+        private static void patchPadding(BPSPatch patch, long from, long count) throws IOException {
+            if (from >= 0 && count > 0) {
+                long copied = Math.max(0, Math.min(count, patch.sourceSize() - from));
+                patch.copy(from, copied);
+                count -= copied;
+            }
+            if (count > 0) {
+                patch.write(ByteBuffer.allocate((int) count), -1);
+            }
+        }
+
+        private static void writePadding(FileChannel source, WritableByteChannel out, long from, long count)
+                throws IOException {
+            if (from >= 0 && count > 0) {
+                long copied = Math.max(0, Math.min(count, source.size() - from));
+                transfer(source, from, copied, out);
+                count -= copied;
+            }
+            while (count > 0) {
+                ByteBuffer zeros = ZEROS.duplicate();
+                zeros.limit((int) Math.min(count, zeros.capacity()));
+                count -= zeros.remaining();
+                writeFully(out, zeros);
+            }
+        }
+
+        private static void transfer(FileChannel source, long from, long count, WritableByteChannel out)
+                throws IOException {
+            long done = 0;
+            while (done < count) {
+                long transferred = source.transferTo(from + done, count - done, out);
+                if (transferred <= 0) {
+                    throw new EOFException("Unexpected end of ROM at " + (from + done));
+                }
+                done += transferred;
+            }
+        }
+
+        private static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                out.write(buf);
+            }
         }
-        return result;
     }
 
-    public void writeToFile(RandomAccessFile file, int size, int value) throws IOException {
-        writeToFile(file, -1, size, value);
+    // Changed files are only fetched from the content store while their part is written, so a
+    // save holds one of them at a time rather than all of them
+    private interface Contents {
+        byte[] get() throws IOException;
     }
 
-    private void writeToFile(RandomAccessFile file, int offset, int size, int value) throws IOException {
-        byte[] buf = new byte[size];
-        for (int i = 0; i < size; i++) {
-            buf[i] = (byte) ((value >> (i * 8)) & 0xFF);
+    private static class Part {
+        private final long offset;
+        private long size;
+        // null for parts copied from the original ROM
+        private final Contents data;
+        // where the part was in the original ROM, or -1 if it is new
+        private final long original;
+        private long originalSize;
+
+        private Part(long offset, long size, Contents data, long original, long originalSize) {
+            this.offset = offset;
+            this.size = size;
+            this.data = data;
+            this.original = original;
+            this.originalSize = originalSize;
+        }
+
+        private long end() {
+            return offset + size;
+        }
+
+        private byte[] contents() throws IOException {
+            byte[] contents = data.get();
+            if (contents.length != size) {
+                throw new IOException("Contents at " + offset + " changed size while saving");
+            }
+            return contents;
+        }
+
+        private long paddingSource() {
+            return original < 0 ? -1 : original + originalSize;
+        }
+    }
+
+    // The ROM is mapped read-only once, and the mapping is shared with every fork. Its pages are
+    // only read from disk when they are first touched, and then stay in the OS page cache, so
+    // original file contents never have to be kept on the heap.
+    private static class OriginalData {
+        private final ByteBuffer image;
+        private byte[] y9table;
+        private byte[] arm9;
+        private byte[] arm9Footer;
+        private boolean arm9HasFooter, arm9Compressed;
+        private int arm9SizeOffset;
+        private long arm9CRC;
+
+        private OriginalData(String filename) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+                // the mapping stays valid once the channel is closed
+                image = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            }
         }
-        if (offset >= 0)
-            file.seek(offset);
-        file.write(buf);
     }
 
 }
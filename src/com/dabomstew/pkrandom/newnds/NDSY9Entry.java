@@ -1,11 +1,6 @@
 package com.dabomstew.pkrandom.newnds;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-
-import com.dabomstew.pkrandom.FileFunctions;
 
 import cuecompressors.BLZCoder;
 
@@ -41,9 +36,7 @@ public class NDSY9Entry {
     public int static_start, static_end;
     public int compressed_size;
     public int compress_flag;
-    private Extracted status = Extracted.NOT;
-    private String extFilename;
-    public byte[] data;
+    private boolean extracted;
     public long originalCRC;
     private boolean decompressed_data = false;
 
@@ -52,89 +45,68 @@ public class NDSY9Entry {
     }
 
     public byte[] getContents() throws IOException {
-        if (this.status == Extracted.NOT) {
+        if (!extracted) {
             // extract file
-            parent.reopenROM();
-            RandomAccessFile rom = parent.getBaseRom();
-            byte[] buf = new byte[this.original_size];
-            rom.seek(this.offset);
-            rom.readFully(buf);
-            originalCRC = FileFunctions.getCRC32(buf);
+            byte[] buf = parent.readOriginalFile(this.offset, this.original_size);
+            originalCRC = NDSRom.getCRC32(parent.originalSlice(this.offset, this.original_size));
             // Compression?
             if (compress_flag != 0 && this.original_size == this.compressed_size && this.compressed_size != 0) {
                 buf = new BLZCoder(null).BLZ_DecodePub(buf, "overlay " + overlay_id);
                 decompressed_data = true;
             }
-            if (parent.isWritingEnabled()) {
-                // make a file
-                String tmpDir = parent.getTmpFolder();
-                String fullPath = String.format("overlay_%04d", overlay_id);
-                this.extFilename = fullPath.replaceAll("[^A-Za-z0-9_]+", "");
-                File tmpFile = new File(tmpDir + extFilename);
-                FileOutputStream fos = new FileOutputStream(tmpFile);
-                fos.write(buf);
-                fos.close();
-                tmpFile.deleteOnExit();
-                this.status = Extracted.TO_FILE;
-                this.data = null;
-                return buf;
-            } else {
-                this.status = Extracted.TO_RAM;
-                this.data = buf;
-                byte[] newcopy = new byte[buf.length];
-                System.arraycopy(buf, 0, newcopy, 0, buf.length);
-                return newcopy;
-            }
-        } else if (this.status == Extracted.TO_RAM) {
-            byte[] newcopy = new byte[this.data.length];
-            System.arraycopy(this.data, 0, newcopy, 0, this.data.length);
-            return newcopy;
-        } else {
-            String tmpDir = parent.getTmpFolder();
-            return FileFunctions.readFileFullyIntoBuffer(tmpDir + this.extFilename);
+            parent.getContentStore().put(storeKey(), buf);
+            extracted = true;
+            return buf;
         }
+        return parent.getContentStore().get(storeKey());
     }
 
     public void writeOverride(byte[] data) throws IOException {
-        if (status == Extracted.NOT) {
+        if (!extracted) {
             // temp extract
             getContents();
         }
         size = data.length;
-        if (status == Extracted.TO_FILE) {
-            String tmpDir = parent.getTmpFolder();
-            FileOutputStream fos = new FileOutputStream(new File(tmpDir + this.extFilename));
-            fos.write(data);
-            fos.close();
-        } else {
-            if (this.data.length == data.length) {
-                // copy new in
-                System.arraycopy(data, 0, this.data, 0, data.length);
-            } else {
-                // make new array
-                this.data = null;
-                this.data = new byte[data.length];
-                System.arraycopy(data, 0, this.data, 0, data.length);
-            }
+        parent.getContentStore().put(storeKey(), data);
+    }
+
+    // returns -1 if no override. An overlay that was compressed is compressed again here, as
+    // that is the only way to know its size; the result is kept in the store until
+    // getOverrideContents hands it out.
+    public long getOverrideLength() throws IOException {
+        if (!extracted) {
+            return -1;
         }
+        if (!this.decompressed_data) {
+            return parent.getContentStore().length(storeKey());
+        }
+        byte[] buf = new BLZCoder(null).BLZ_EncodePub(getContents(), false, false, "overlay " + overlay_id);
+        // update our compressed size
+        this.compressed_size = buf.length;
+        parent.getContentStore().put(compressedStoreKey(), buf);
+        return buf.length;
     }
 
     // returns null if no override
     public byte[] getOverrideContents() throws IOException {
-        if (status == Extracted.NOT) {
+        if (!extracted) {
             return null;
         }
-        byte[] buf = getContents();
-        if (this.decompressed_data) {
-            buf = new BLZCoder(null).BLZ_EncodePub(buf, false, false, "overlay " + overlay_id);
-            // update our compressed size
-            this.compressed_size = buf.length;
+        if (!this.decompressed_data) {
+            return getContents();
+        }
+        if (!parent.getContentStore().contains(compressedStoreKey())) {
+            getOverrideLength();
         }
-        return buf;
+        return parent.getContentStore().get(compressedStoreKey());
+    }
+
+    private String storeKey() {
+        return String.format("overlay:%04d", overlay_id);
     }
 
-    private enum Extracted {
-        NOT, TO_FILE, TO_RAM
+    private String compressedStoreKey() {
+        return String.format("overlay:%04d:compressed", overlay_id);
     }
 
 }
@@ -25,6 +25,9 @@ package com.dabomstew.pkrandom.romhandlers;
 /*----------------------------------------------------------------------------*/
 
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.RomFileHeader;
+import com.dabomstew.pkrandom.RomIOEvent;
 import com.dabomstew.pkrandom.ctr.GARCArchive;
 import com.dabomstew.pkrandom.ctr.NCCH;
 import com.dabomstew.pkrandom.exceptions.CannotWriteToLocationException;
@@ -32,12 +35,15 @@ import com.dabomstew.pkrandom.exceptions.EncryptedROMException;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
 import com.dabomstew.pkrandom.pokemon.Type;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
-import java.util.Random;
 
 public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
 
@@ -45,7 +51,7 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
     private NCCH gameUpdate;
     private String loadedFN;
 
-    public Abstract3DSRomHandler(Random random, PrintStream logStream) {
+    public Abstract3DSRomHandler(RandomSource random, PrintStream logStream) {
         super(random, logStream);
     }
 
@@ -58,7 +64,7 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         }
         // Load inner rom
         try {
-            baseRom = new NCCH(filename, productCode, titleId);
+            baseRom = new NCCH(filename, productCode, titleId, contentBudget());
             if (!baseRom.isDecrypted()) {
                 throw new EncryptedROMException(filename);
             }
@@ -70,6 +76,23 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    @Override
+    public boolean loadRomFrom(RomHandler base) {
+        if (base.getClass() != this.getClass()) {
+            return false;
+        }
+        Abstract3DSRomHandler ctrBase = (Abstract3DSRomHandler) base;
+        try {
+            baseRom = new NCCH(ctrBase.baseRom, contentBudget());
+            gameUpdate = ctrBase.gameUpdate == null ? null : new NCCH(ctrBase.gameUpdate, contentBudget());
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+        loadedFN = ctrBase.loadedFN;
+        this.loadedROM(baseRom.getProductCode(), baseRom.getTitleId());
+        return true;
+    }
+
     protected abstract boolean detect3DSRom(String productCode, String titleId);
 
     @Override
@@ -98,6 +121,25 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    // Building an NCCH needs to go back and forth in the file, so it is built in a temporary file
+    @Override
+    public boolean saveRomToStream(OutputStream out, long seed) {
+        File image = null;
+        try {
+            image = File.createTempFile("upr-", ".cxi");
+            savingROM();
+            baseRom.saveAsNCCH(image.getAbsolutePath(), getGameAcronym(), seed);
+            Files.copy(image.toPath(), out);
+        } catch (IOException | NoSuchAlgorithmException e) {
+            throw new RandomizerIOException(e);
+        } finally {
+            if (image != null) {
+                image.delete();
+            }
+        }
+        return true;
+    }
+
     @Override
     public boolean saveRomDirectory(String filename) {
         try {
@@ -109,6 +151,28 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    // There is no patch format for whole 3DS games, so the patch is a zipped LayeredFS
+    // directory, which only has the changed files
+    @Override
+    public boolean saveRomPatch(String filename) {
+        try {
+            savingROM();
+            baseRom.saveAsLayeredFSZip(filename);
+        } catch (IOException e) {
+            if (e.getMessage().contains("Access is denied")) {
+                throw new CannotWriteToLocationException("The randomizer cannot write to this location: " + filename);
+            } else {
+                throw new RandomizerIOException(e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getPatchExtension() {
+        return "zip";
+    }
+
     protected abstract boolean isGameUpdateSupported(int version);
 
     @Override
@@ -121,7 +185,7 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         String productCode = getProductCodeFromFile(filename);
         String titleId = getTitleIdFromFile(filename);
         try {
-            gameUpdate = new NCCH(filename, productCode, titleId);
+            gameUpdate = new NCCH(filename, productCode, titleId, contentBudget());
             if (!gameUpdate.isDecrypted()) {
                 throw new EncryptedROMException(filename);
             }
@@ -158,6 +222,13 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         baseRom.closeROM();
     }
 
+    public void disposeInnerRom() throws IOException {
+        baseRom.dispose();
+        if (gameUpdate != null) {
+            gameUpdate.dispose();
+        }
+    }
+
     @Override
     public boolean hasPhysicalSpecialSplit() {
         // Default value for Gen4+.
@@ -177,15 +248,26 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
     }
 
     protected GARCArchive readGARC(String subpath, boolean skipDecompression) throws IOException {
-        return new GARCArchive(readFile(subpath),skipDecompression);
+        byte[] data = readFile(subpath);
+        RomIOEvent event = RomIOEvent.start("GARC parse", subpath);
+        GARCArchive garc = new GARCArchive(data,skipDecompression);
+        event.finish(data.length);
+        return garc;
     }
 
     protected GARCArchive readGARC(String subpath, List<Boolean> compressThese) throws IOException {
-        return new GARCArchive(readFile(subpath),compressThese);
+        byte[] data = readFile(subpath);
+        RomIOEvent event = RomIOEvent.start("GARC parse", subpath);
+        GARCArchive garc = new GARCArchive(data,compressThese);
+        event.finish(data.length);
+        return garc;
     }
 
     protected void writeGARC(String subpath, GARCArchive garc) throws IOException {
-        this.writeFile(subpath,garc.getBytes());
+        RomIOEvent event = RomIOEvent.start("GARC build", subpath);
+        byte[] data = garc.getBytes();
+        event.finish(data.length);
+        this.writeFile(subpath,data);
     }
 
     protected byte[] readFile(String location) throws IOException {
@@ -251,6 +333,24 @@ public abstract class Abstract3DSRomHandler extends AbstractRomHandler {
         return baseRom.getTitleId();
     }
 
+    protected static String getProductCode(RomFileHeader header) {
+        long ncchStartingOffset = NCCH.getCXIOffset(header);
+        if (ncchStartingOffset == -1) {
+            return null;
+        }
+        return new String(header.read(ncchStartingOffset + 0x150, 0x10), StandardCharsets.UTF_8).trim();
+    }
+
+    protected static String getTitleId(RomFileHeader header) {
+        long ncchStartingOffset = NCCH.getCXIOffset(header);
+        if (ncchStartingOffset == -1) {
+            return null;
+        }
+        byte[] programId = header.read(ncchStartingOffset + 0x118, 0x8);
+        reverseArray(programId);
+        return bytesToHex(programId);
+    }
+
     protected static String getProductCodeFromFile(String filename) {
         try {
             long ncchStartingOffset = NCCH.getCXIOffsetInFile(filename);
@@ -26,13 +26,22 @@ package com.dabomstew.pkrandom.romhandlers;
 /*----------------------------------------------------------------------------*/
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.Set;
 
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.RomFileHeader;
 import com.dabomstew.pkrandom.RomFunctions;
+import com.dabomstew.pkrandom.RomIOEvent;
 import com.dabomstew.pkrandom.exceptions.CannotWriteToLocationException;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
 import com.dabomstew.pkrandom.newnds.NARCArchive;
@@ -45,8 +54,12 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
     private NDSRom baseRom;
     private String loadedFN;
     private boolean arm9Extended = false;
+    // Every NARC is parsed once and changed in place; the ones written back are only rebuilt
+    // when the ROM is saved
+    private final Map<String, NARCArchive> narcs = new HashMap<>();
+    private final Set<String> changedNARCs = new LinkedHashSet<>();
 
-    public AbstractDSRomHandler(Random random, PrintStream logStream) {
+    public AbstractDSRomHandler(RandomSource random, PrintStream logStream) {
         super(random, logStream);
     }
 
@@ -59,7 +72,7 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         }
         // Load inner rom
         try {
-            baseRom = new NDSRom(filename);
+            baseRom = new NDSRom(filename, contentBudget());
         } catch (IOException e) {
             throw new RandomizerIOException(e);
         }
@@ -68,6 +81,22 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    @Override
+    public boolean loadRomFrom(RomHandler base) {
+        if (base.getClass() != this.getClass()) {
+            return false;
+        }
+        AbstractDSRomHandler dsBase = (AbstractDSRomHandler) base;
+        try {
+            baseRom = new NDSRom(dsBase.baseRom, contentBudget());
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+        loadedFN = dsBase.loadedFN;
+        loadedROM(baseRom.getCode(), baseRom.getVersion());
+        return true;
+    }
+
     @Override
     public String loadedFilename() {
         return loadedFN;
@@ -85,9 +114,18 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
 
     protected abstract void savingROM();
 
+    private void saveChanges() {
+        savingROM();
+        try {
+            writeChangedNARCs();
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+    }
+
     @Override
     public boolean saveRomFile(String filename, long seed) {
-        savingROM();
+        saveChanges();
         try {
             baseRom.saveTo(filename);
         } catch (IOException e) {
@@ -100,6 +138,37 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    @Override
+    public boolean saveRomPatch(String filename) {
+        saveChanges();
+        try {
+            baseRom.saveAsPatch(filename);
+        } catch (IOException e) {
+            if (e.getMessage().contains("Access is denied")) {
+                throw new CannotWriteToLocationException("The randomizer cannot write to this location: " + filename);
+            } else {
+                throw new RandomizerIOException(e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getPatchExtension() {
+        return "bps";
+    }
+
+    @Override
+    public boolean saveRomToStream(OutputStream out, long seed) {
+        saveChanges();
+        try {
+            baseRom.writeTo(out);
+        } catch (IOException e) {
+            throw new RandomizerIOException(e);
+        }
+        return true;
+    }
+
     @Override
     public boolean saveRomDirectory(String filename) {
         // do nothing. DS games do have the concept of a filesystem, but it's way more
@@ -138,6 +207,10 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         baseRom.closeROM();
     }
 
+    public void disposeInnerRom() throws IOException {
+        baseRom.dispose();
+    }
+
     @Override
     public boolean canChangeStaticPokemon() {
         return false;
@@ -150,12 +223,37 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         return true;
     }
 
+    // Repeated reads of the same NARC return the same archive, including any changes made to it
     public NARCArchive readNARC(String subpath) throws IOException {
-        return new NARCArchive(readFile(subpath));
+        NARCArchive narc = narcs.get(subpath);
+        if (narc == null) {
+            ByteBuffer data = baseRom.getFileBuffer(subpath);
+            RomIOEvent event = RomIOEvent.start("NARC parse", subpath);
+            narc = new NARCArchive(data);
+            event.finish(data.limit());
+            narcs.put(subpath, narc);
+        }
+        return narc;
     }
 
+    // The archive is rebuilt and written to the ROM once, when the ROM is saved
     public void writeNARC(String subpath, NARCArchive narc) throws IOException {
-        this.writeFile(subpath, narc.getBytes());
+        narcs.put(subpath, narc);
+        changedNARCs.add(subpath);
+    }
+
+    private void writeChangedNARCs() throws IOException {
+        for (String subpath : changedNARCs) {
+            writeChangedNARC(subpath);
+        }
+        changedNARCs.clear();
+    }
+
+    private void writeChangedNARC(String subpath) throws IOException {
+        RomIOEvent event = RomIOEvent.start("NARC build", subpath);
+        byte[] data = narcs.get(subpath).getBytes();
+        event.finish(data.length);
+        baseRom.writeFile(subpath, data);
     }
 
     protected static String getROMCodeFromFile(String filename) {
@@ -170,6 +268,14 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
         }
     }
 
+    protected static String getROMCode(RomFileHeader header) {
+        return new String(header.read(0x0C, 4), StandardCharsets.US_ASCII);
+    }
+
+    protected static byte getVersion(RomFileHeader header) {
+        return header.read(0x1E, 1)[0];
+    }
+
     protected static byte getVersionFromFile(String filename) {
         try {
             FileInputStream fis = new FileInputStream(filename);
@@ -215,6 +321,9 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
     }
 
     protected byte[] readFile(String location) throws IOException {
+        if (changedNARCs.remove(location)) {
+            writeChangedNARC(location);
+        }
         return baseRom.getFile(location);
     }
 
@@ -228,6 +337,9 @@ public abstract class AbstractDSRomHandler extends AbstractRomHandler {
             System.arraycopy(data, offset, newData, 0, length);
             data = newData;
         }
+        // the file no longer matches the parsed archive, if there is one
+        narcs.remove(location);
+        changedNARCs.remove(location);
         baseRom.writeFile(location, data);
     }
 
@@ -29,12 +29,19 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
+import com.dabomstew.pkrandom.BPSPatch;
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RandomSource;
 import com.dabomstew.pkrandom.exceptions.CannotWriteToLocationException;
 import com.dabomstew.pkrandom.exceptions.RandomizerIOException;
 
@@ -44,7 +51,11 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
     protected byte[] originalRom;
     private String loadedFN;
 
-    public AbstractGBRomHandler(Random random, PrintStream logStream) {
+    // Original images are never written to, so all handlers that have loaded the same ROM share
+    // a single copy of it. Only the working image in rom belongs to each handler.
+    private static final Map<String, WeakReference<byte[]>> originalImages = new HashMap<>();
+
+    public AbstractGBRomHandler(RandomSource random, PrintStream logStream) {
         super(random, logStream);
     }
 
@@ -55,13 +66,27 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
             return false;
         }
         this.rom = loaded;
-        this.originalRom = new byte[rom.length];
-        System.arraycopy(rom, 0, originalRom, 0, rom.length);
+        this.originalRom = sharedOriginalImage(filename, rom);
         loadedFN = filename;
         loadedRom();
         return true;
     }
 
+    @Override
+    public boolean loadRomFrom(RomHandler base) {
+        if (base.getClass() != this.getClass()) {
+            return false;
+        }
+        AbstractGBRomHandler gbBase = (AbstractGBRomHandler) base;
+        // originalRom is never written to, so it can be shared with the base handler
+        this.originalRom = gbBase.originalRom;
+        this.rom = new byte[originalRom.length];
+        System.arraycopy(originalRom, 0, rom, 0, originalRom.length);
+        loadedFN = gbBase.loadedFN;
+        loadedRom();
+        return true;
+    }
+
     @Override
     public String loadedFilename() {
         return loadedFN;
@@ -83,12 +108,43 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
         }
     }
 
+    @Override
+    public boolean saveRomToStream(OutputStream out, long seed) {
+        savingRom();
+        try {
+            out.write(rom);
+            return true;
+        } catch (IOException ex) {
+            throw new RandomizerIOException(ex);
+        }
+    }
+
     @Override
     public boolean saveRomDirectory(String filename) {
         // do nothing, because GB games don't really have a concept of a filesystem
         return true;
     }
 
+    @Override
+    public boolean saveRomPatch(String filename) {
+        savingRom();
+        // GB games are always changed in place, so nothing needs to be found at another offset
+        try (FileOutputStream fos = new FileOutputStream(filename)) {
+            BPSPatch.write(ByteBuffer.wrap(originalRom), ByteBuffer.wrap(rom), fos);
+            return true;
+        } catch (IOException ex) {
+            if (ex.getMessage().contains("Access is denied")) {
+                throw new CannotWriteToLocationException("The randomizer cannot write to this location: " + filename);
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public String getPatchExtension() {
+        return "bps";
+    }
+
     @Override
     public boolean hasGameUpdateLoaded() {
         return false;
@@ -131,6 +187,19 @@ public abstract class AbstractGBRomHandler extends AbstractRomHandler {
         return false;
     }
 
+    private static synchronized byte[] sharedOriginalImage(String filename, byte[] image) {
+        originalImages.values().removeIf(ref -> ref.get() == null);
+        WeakReference<byte[]> ref = originalImages.get(filename);
+        byte[] original = ref == null ? null : ref.get();
+        // The file may have changed since it was last loaded
+        if (original == null || !Arrays.equals(original, image)) {
+            original = new byte[image.length];
+            System.arraycopy(image, 0, original, 0, image.length);
+            originalImages.put(filename, new WeakReference<>(original));
+        }
+        return original;
+    }
+
     public abstract boolean detectRom(byte[] rom);
 
     public abstract void loadedRom();
@@ -48,9 +48,11 @@ public abstract class AbstractRomHandler implements RomHandler {
     private List<Pokemon> noLegendaryListInclFormes, onlyLegendaryListInclFormes;
     private List<Pokemon> noLegendaryAltsList, onlyLegendaryAltsList;
     private List<Pokemon> pickedStarters;
+    private final RandomSource randomSource;
     protected final Random random;
     private final Random cosmeticRandom;
     protected PrintStream logStream;
+    protected boolean dryRun;
     private List<Pokemon> alreadyPicked = new ArrayList<>();
     private Map<Pokemon, Integer> placementHistory = new HashMap<>();
     private Map<Integer, Integer> itemPlacementHistory = new HashMap<>();
@@ -61,9 +63,10 @@ public abstract class AbstractRomHandler implements RomHandler {
 
     /* Constructor */
 
-    public AbstractRomHandler(Random random, PrintStream logStream) {
-        this.random = random;
-        this.cosmeticRandom = RandomSource.cosmeticInstance();
+    public AbstractRomHandler(RandomSource randomSource, PrintStream logStream) {
+        this.randomSource = randomSource;
+        this.random = randomSource.instance();
+        this.cosmeticRandom = randomSource.cosmeticInstance();
         this.fullyEvolvedRandomSeed = -1;
         this.logStream = logStream;
     }
@@ -76,6 +79,19 @@ public abstract class AbstractRomHandler implements RomHandler {
         this.logStream = logStream;
     }
 
+    public void setDryRun(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    // Bytes of extracted files a DS or 3DS ROM keeps in memory before it spills them to temp files
+    protected long contentBudget() {
+        return dryRun ? ContentStore.UNLIMITED : ContentStore.getDefaultBudget();
+    }
+
+    public RandomSource getRandomSource() {
+        return randomSource;
+    }
+
     public void setPokemonPool(Settings settings) {
         GenRestrictions restrictions = null;
         if (settings != null) {
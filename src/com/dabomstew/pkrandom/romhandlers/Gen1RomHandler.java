@@ -37,8 +37,6 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
-import java.util.Scanner;
 import java.util.TreeMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -55,26 +53,35 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen1RomHandler create(Random random, PrintStream logStream) {
+        public Gen1RomHandler create(RandomSource random, PrintStream logStream) {
             return new Gen1RomHandler(random, logStream);
         }
 
         public boolean isLoadable(String filename) {
-            long fileLength = new File(filename).length();
-            if (fileLength > 8 * 1024 * 1024) {
+            return isLoadable(new RomFileHeader(filename));
+        }
+
+        @Override
+        public boolean isLoadable(RomFileHeader header) {
+            long fileLength = header.length();
+            if (fileLength == 0 || fileLength > 8 * 1024 * 1024) {
                 return false;
             }
-            byte[] loaded = loadFilePartial(filename, 0x1000);
-            // nope
-            return loaded.length != 0 && detectRomInner(loaded, (int) fileLength);
+            byte[] loaded = header.read(0, (int) Math.min(fileLength, 0x1000));
+            return detectRomInner(loaded, (int) fileLength);
+        }
+
+        @Override
+        public RomFileHeader.Format getFormat() {
+            return RomFileHeader.Format.GB;
         }
     }
 
-    public Gen1RomHandler(Random random) {
+    public Gen1RomHandler(RandomSource random) {
         super(random, null);
     }
 
-    public Gen1RomHandler(Random random, PrintStream logStream) {
+    public Gen1RomHandler(RandomSource random, PrintStream logStream) {
         super(random, logStream);
     }
 
@@ -133,6 +140,8 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
 
     private static List<RomEntry> roms;
 
+    private static final Pattern staticPokemonPattern = Pattern.compile("[A-z]+=\\[(0x[0-9a-fA-F]+,?\\s?)+]");
+
     static {
         loadROMInfo();
     }
@@ -147,9 +156,8 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
         roms = new ArrayList<>();
         RomEntry current = null;
         try {
-            Scanner sc = new Scanner(FileFunctions.openConfig("gen1_offsets.ini"), "UTF-8");
-            while (sc.hasNextLine()) {
-                String q = sc.nextLine().trim();
+            for (String line : FileFunctions.readConfigLines("gen1_offsets.ini")) {
+                String q = line.trim();
                 if (q.contains("//")) {
                     q = q.substring(0, q.indexOf("//")).trim();
                 }
@@ -257,7 +265,6 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
                     }
                 }
             }
-            sc.close();
         } catch (FileNotFoundException e) {
             System.err.println("File not found!");
         }
@@ -266,9 +273,7 @@ public class Gen1RomHandler extends AbstractGBCRomHandler {
 
     private static StaticPokemon parseStaticPokemon(String staticPokemonString) {
         StaticPokemon sp = new StaticPokemon();
-        String pattern = "[A-z]+=\\[(0x[0-9a-fA-F]+,?\\s?)+]";
-        Pattern r = Pattern.compile(pattern);
-        Matcher m = r.matcher(staticPokemonString);
+        Matcher m = staticPokemonPattern.matcher(staticPokemonString);
         while (m.find()) {
             String[] segments = m.group().split("=");
             String[] romOffsets = segments[1].substring(1, segments[1].length() - 1).split(",");
@@ -45,26 +45,35 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen2RomHandler create(Random random, PrintStream logStream) {
+        public Gen2RomHandler create(RandomSource random, PrintStream logStream) {
             return new Gen2RomHandler(random, logStream);
         }
 
         public boolean isLoadable(String filename) {
-            long fileLength = new File(filename).length();
-            if (fileLength > 8 * 1024 * 1024) {
+            return isLoadable(new RomFileHeader(filename));
+        }
+
+        @Override
+        public boolean isLoadable(RomFileHeader header) {
+            long fileLength = header.length();
+            if (fileLength == 0 || fileLength > 8 * 1024 * 1024) {
                 return false;
             }
-            byte[] loaded = loadFilePartial(filename, 0x1000);
-            // nope
-            return loaded.length != 0 && detectRomInner(loaded, (int) fileLength);
+            byte[] loaded = header.read(0, (int) Math.min(fileLength, 0x1000));
+            return detectRomInner(loaded, (int) fileLength);
+        }
+
+        @Override
+        public RomFileHeader.Format getFormat() {
+            return RomFileHeader.Format.GB;
         }
     }
 
-    public Gen2RomHandler(Random random) {
+    public Gen2RomHandler(RandomSource random) {
         super(random, null);
     }
 
-    public Gen2RomHandler(Random random, PrintStream logStream) {
+    public Gen2RomHandler(RandomSource random, PrintStream logStream) {
         super(random, logStream);
     }
 
@@ -106,6 +115,8 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
 
     private static List<RomEntry> roms;
 
+    private static final Pattern staticPokemonPattern = Pattern.compile("[A-z]+=\\[(0x[0-9a-fA-F]+,?\\s?)+]");
+
     static {
         loadROMInfo();
     }
@@ -114,9 +125,8 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
         roms = new ArrayList<>();
         RomEntry current = null;
         try {
-            Scanner sc = new Scanner(FileFunctions.openConfig("gen2_offsets.ini"), "UTF-8");
-            while (sc.hasNextLine()) {
-                String q = sc.nextLine().trim();
+            for (String line : FileFunctions.readConfigLines("gen2_offsets.ini")) {
+                String q = line.trim();
                 if (q.contains("//")) {
                     q = q.substring(0, q.indexOf("//")).trim();
                 }
@@ -212,7 +222,6 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
                     }
                 }
             }
-            sc.close();
         } catch (FileNotFoundException e) {
             System.err.println("File not found!");
         }
@@ -226,9 +235,7 @@ public class Gen2RomHandler extends AbstractGBCRomHandler {
         } else {
             sp = new StaticPokemon();
         }
-        String pattern = "[A-z]+=\\[(0x[0-9a-fA-F]+,?\\s?)+]";
-        Pattern r = Pattern.compile(pattern);
-        Matcher m = r.matcher(staticPokemonString);
+        Matcher m = staticPokemonPattern.matcher(staticPokemonString);
         while (m.find()) {
             String[] segments = m.group().split("=");
             String[] romOffsets = segments[1].substring(1, segments[1].length() - 1).split(",");
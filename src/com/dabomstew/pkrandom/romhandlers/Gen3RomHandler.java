@@ -43,26 +43,35 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen3RomHandler create(Random random, PrintStream logStream) {
+        public Gen3RomHandler create(RandomSource random, PrintStream logStream) {
             return new Gen3RomHandler(random, logStream);
         }
 
         public boolean isLoadable(String filename) {
-            long fileLength = new File(filename).length();
-            if (fileLength > 32 * 1024 * 1024) {
+            return isLoadable(new RomFileHeader(filename));
+        }
+
+        @Override
+        public boolean isLoadable(RomFileHeader header) {
+            long fileLength = header.length();
+            if (fileLength == 0 || fileLength > 32 * 1024 * 1024) {
                 return false;
             }
-            byte[] loaded = loadFilePartial(filename, 0x100000);
-            // nope
-            return loaded.length != 0 && detectRomInner(loaded, (int) fileLength);
+            byte[] loaded = header.read(0, (int) Math.min(fileLength, 0x100000));
+            return detectRomInner(loaded, (int) fileLength);
+        }
+
+        @Override
+        public RomFileHeader.Format getFormat() {
+            return RomFileHeader.Format.GBA;
         }
     }
 
-    public Gen3RomHandler(Random random) {
+    public Gen3RomHandler(RandomSource random) {
         super(random, null);
     }
 
-    public Gen3RomHandler(Random random, PrintStream logStream) {
+    public Gen3RomHandler(RandomSource random, PrintStream logStream) {
         super(random, logStream);
     }
 
@@ -130,6 +139,8 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
 
     private static List<RomEntry> roms;
 
+    private static final Pattern staticPokemonPattern = Pattern.compile("[A-z]+=\\[(0x[0-9a-fA-F]+,?\\s?)+]");
+
     static {
         loadROMInfo();
     }
@@ -138,9 +149,8 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
         roms = new ArrayList<>();
         RomEntry current = null;
         try {
-            Scanner sc = new Scanner(FileFunctions.openConfig("gen3_offsets.ini"), "UTF-8");
-            while (sc.hasNextLine()) {
-                String q = sc.nextLine().trim();
+            for (String line : FileFunctions.readConfigLines("gen3_offsets.ini")) {
+                String q = line.trim();
                 if (q.contains("//")) {
                     q = q.substring(0, q.indexOf("//")).trim();
                 }
@@ -260,7 +270,6 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
                     }
                 }
             }
-            sc.close();
         } catch (FileNotFoundException e) {
             System.err.println("File not found!");
         }
@@ -299,9 +308,7 @@ public class Gen3RomHandler extends AbstractGBRomHandler {
 
     private static StaticPokemon parseStaticPokemon(String staticPokemonString) {
         StaticPokemon sp = new StaticPokemon();
-        String pattern = "[A-z]+=\\[(0x[0-9a-fA-F]+,?\\s?)+]";
-        Pattern r = Pattern.compile(pattern);
-        Matcher m = r.matcher(staticPokemonString);
+        Matcher m = staticPokemonPattern.matcher(staticPokemonString);
         while (m.find()) {
             String[] segments = m.group().split("=");
             String[] romOffsets = segments[1].substring(1, segments[1].length() - 1).split(",");
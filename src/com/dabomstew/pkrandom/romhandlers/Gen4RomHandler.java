@@ -48,20 +48,30 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen4RomHandler create(Random random, PrintStream logStream) {
+        public Gen4RomHandler create(RandomSource random, PrintStream logStream) {
             return new Gen4RomHandler(random, logStream);
         }
 
         public boolean isLoadable(String filename) {
-            return detectNDSRomInner(getROMCodeFromFile(filename), getVersionFromFile(filename));
+            return isLoadable(new RomFileHeader(filename));
+        }
+
+        @Override
+        public boolean isLoadable(RomFileHeader header) {
+            return detectNDSRomInner(getROMCode(header), getVersion(header));
+        }
+
+        @Override
+        public RomFileHeader.Format getFormat() {
+            return RomFileHeader.Format.NDS;
         }
     }
 
-    public Gen4RomHandler(Random random) {
+    public Gen4RomHandler(RandomSource random) {
         super(random, null);
     }
 
-    public Gen4RomHandler(Random random, PrintStream logStream) {
+    public Gen4RomHandler(RandomSource random, PrintStream logStream) {
         super(random, logStream);
     }
 
@@ -116,6 +126,11 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
 
     private static List<RomEntry> roms;
 
+    private static final Pattern staticPokemonPattern = Pattern.compile("[A-z]+=\\[([0-9]+:0x[0-9a-fA-F]+,?\\s?)+]");
+    private static final Pattern staticPokemonGameCornerPattern = Pattern.compile("[A-z]+=\\[([0-9]+:0x[0-9a-fA-F]+,?\\s?)+]");
+    private static final Pattern roamingPokemonPattern = Pattern.compile("[A-z]+=\\[(0x[0-9a-fA-F]+,?\\s?)+]|[A-z]+=\\[([0-9]+:0x[0-9a-fA-F]+,?\\s?)+]");
+    private static final Pattern tmTextPattern = Pattern.compile("[0-9]+=\\[([0-9]+:[0-9]+,?\\s?)+]");
+
     static {
         loadROMInfo();
 
@@ -125,9 +140,8 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
         roms = new ArrayList<>();
         RomEntry current = null;
         try {
-            Scanner sc = new Scanner(FileFunctions.openConfig("gen4_offsets.ini"), "UTF-8");
-            while (sc.hasNextLine()) {
-                String q = sc.nextLine().trim();
+            for (String line : FileFunctions.readConfigLines("gen4_offsets.ini")) {
+                String q = line.trim();
                 if (q.contains("//")) {
                     q = q.substring(0, q.indexOf("//")).trim();
                 }
@@ -281,7 +295,6 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
                     }
                 }
             }
-            sc.close();
         } catch (FileNotFoundException e) {
             System.err.println("File not found!");
         }
@@ -320,9 +333,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
 
     private static StaticPokemon parseStaticPokemon(String staticPokemonString) {
         StaticPokemon sp = new StaticPokemon();
-        String pattern = "[A-z]+=\\[([0-9]+:0x[0-9a-fA-F]+,?\\s?)+]";
-        Pattern r = Pattern.compile(pattern);
-        Matcher m = r.matcher(staticPokemonString);
+        Matcher m = staticPokemonPattern.matcher(staticPokemonString);
         while (m.find()) {
             String[] segments = m.group().split("=");
             String[] offsets = segments[1].substring(1, segments[1].length() - 1).split(",");
@@ -348,9 +359,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
 
     private static StaticPokemonGameCorner parseStaticPokemonGameCorner(String staticPokemonString) {
         StaticPokemonGameCorner sp = new StaticPokemonGameCorner();
-        String pattern = "[A-z]+=\\[([0-9]+:0x[0-9a-fA-F]+,?\\s?)+]";
-        Pattern r = Pattern.compile(pattern);
-        Matcher m = r.matcher(staticPokemonString);
+        Matcher m = staticPokemonGameCornerPattern.matcher(staticPokemonString);
         while (m.find()) {
             String[] segments = m.group().split("=");
             String[] offsets = segments[1].substring(1, segments[1].length() - 1).split(",");
@@ -386,9 +395,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
 
     private static RoamingPokemon parseRoamingPokemon(String roamingPokemonString) {
         RoamingPokemon rp = new RoamingPokemon();
-        String pattern = "[A-z]+=\\[(0x[0-9a-fA-F]+,?\\s?)+]|[A-z]+=\\[([0-9]+:0x[0-9a-fA-F]+,?\\s?)+]";
-        Pattern r = Pattern.compile(pattern);
-        Matcher m = r.matcher(roamingPokemonString);
+        Matcher m = roamingPokemonPattern.matcher(roamingPokemonString);
         while (m.find()) {
             String[] segments = m.group().split("=");
             String[] offsets = segments[1].substring(1, segments[1].length() - 1).split(",");
@@ -429,9 +436,7 @@ public class Gen4RomHandler extends AbstractDSRomHandler {
     }
 
     private static void parseTMText(String tmTextString, Map<Integer, List<TextEntry>> tmTexts) {
-        String pattern = "[0-9]+=\\[([0-9]+:[0-9]+,?\\s?)+]";
-        Pattern r = Pattern.compile(pattern);
-        Matcher m = r.matcher(tmTextString);
+        Matcher m = tmTextPattern.matcher(tmTextString);
         while (m.find()) {
             String[] segments = m.group().split("=");
             int tmNum = parseRIInt(segments[0]);
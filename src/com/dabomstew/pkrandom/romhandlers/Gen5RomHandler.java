@@ -50,20 +50,30 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen5RomHandler create(Random random, PrintStream logStream) {
+        public Gen5RomHandler create(RandomSource random, PrintStream logStream) {
             return new Gen5RomHandler(random, logStream);
         }
 
         public boolean isLoadable(String filename) {
-            return detectNDSRomInner(getROMCodeFromFile(filename), getVersionFromFile(filename));
+            return isLoadable(new RomFileHeader(filename));
+        }
+
+        @Override
+        public boolean isLoadable(RomFileHeader header) {
+            return detectNDSRomInner(getROMCode(header), getVersion(header));
+        }
+
+        @Override
+        public RomFileHeader.Format getFormat() {
+            return RomFileHeader.Format.NDS;
         }
     }
 
-    public Gen5RomHandler(Random random) {
+    public Gen5RomHandler(RandomSource random) {
         super(random, null);
     }
 
-    public Gen5RomHandler(Random random, PrintStream logStream) {
+    public Gen5RomHandler(RandomSource random, PrintStream logStream) {
         super(random, logStream);
     }
 
@@ -122,6 +132,9 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
 
     private static List<RomEntry> roms;
 
+    private static final Pattern staticPokemonPattern = Pattern.compile("[A-z]+=\\[([0-9]+:0x[0-9a-fA-F]+,?\\s?)+]");
+    private static final Pattern roamingPokemonPattern = Pattern.compile("[A-z]+=\\[(0x[0-9a-fA-F]+,?\\s?)+]|[A-z]+=\\[([0-9]+:0x[0-9a-fA-F]+,?\\s?)+]");
+
     static {
         loadROMInfo();
     }
@@ -130,9 +143,8 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
         roms = new ArrayList<>();
         RomEntry current = null;
         try {
-            Scanner sc = new Scanner(FileFunctions.openConfig("gen5_offsets.ini"), "UTF-8");
-            while (sc.hasNextLine()) {
-                String q = sc.nextLine().trim();
+            for (String line : FileFunctions.readConfigLines("gen5_offsets.ini")) {
+                String q = line.trim();
                 if (q.contains("//")) {
                     q = q.substring(0, q.indexOf("//")).trim();
                 }
@@ -276,7 +288,6 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
                     }
                 }
             }
-            sc.close();
         } catch (FileNotFoundException e) {
             System.err.println("File not found!");
         }
@@ -314,9 +325,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
 
     private static StaticPokemon parseStaticPokemon(String staticPokemonString) {
         StaticPokemon sp = new StaticPokemon();
-        String pattern = "[A-z]+=\\[([0-9]+:0x[0-9a-fA-F]+,?\\s?)+]";
-        Pattern r = Pattern.compile(pattern);
-        Matcher m = r.matcher(staticPokemonString);
+        Matcher m = staticPokemonPattern.matcher(staticPokemonString);
         while (m.find()) {
             String[] segments = m.group().split("=");
             String[] offsets = segments[1].substring(1, segments[1].length() - 1).split(",");
@@ -342,9 +351,7 @@ public class Gen5RomHandler extends AbstractDSRomHandler {
 
     private static RoamingPokemon parseRoamingPokemon(String roamingPokemonString) {
         RoamingPokemon rp = new RoamingPokemon();
-        String pattern = "[A-z]+=\\[(0x[0-9a-fA-F]+,?\\s?)+]|[A-z]+=\\[([0-9]+:0x[0-9a-fA-F]+,?\\s?)+]";
-        Pattern r = Pattern.compile(pattern);
-        Matcher m = r.matcher(roamingPokemonString);
+        Matcher m = roamingPokemonPattern.matcher(roamingPokemonString);
         while (m.find()) {
             String[] segments = m.group().split("=");
             String[] offsets = segments[1].substring(1, segments[1].length() - 1).split(",");
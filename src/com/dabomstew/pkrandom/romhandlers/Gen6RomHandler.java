@@ -44,20 +44,30 @@ public class Gen6RomHandler extends Abstract3DSRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen6RomHandler create(Random random, PrintStream logStream) {
+        public Gen6RomHandler create(RandomSource random, PrintStream logStream) {
             return new Gen6RomHandler(random, logStream);
         }
 
         public boolean isLoadable(String filename) {
-            return detect3DSRomInner(getProductCodeFromFile(filename), getTitleIdFromFile(filename));
+            return isLoadable(new RomFileHeader(filename));
+        }
+
+        @Override
+        public boolean isLoadable(RomFileHeader header) {
+            return detect3DSRomInner(getProductCode(header), getTitleId(header));
+        }
+
+        @Override
+        public RomFileHeader.Format getFormat() {
+            return RomFileHeader.Format.CTR;
         }
     }
 
-    public Gen6RomHandler(Random random) {
+    public Gen6RomHandler(RandomSource random) {
         super(random, null);
     }
 
-    public Gen6RomHandler(Random random, PrintStream logStream) {
+    public Gen6RomHandler(RandomSource random, PrintStream logStream) {
         super(random, logStream);
     }
 
@@ -118,9 +128,8 @@ public class Gen6RomHandler extends Abstract3DSRomHandler {
         roms = new ArrayList<>();
         RomEntry current = null;
         try {
-            Scanner sc = new Scanner(FileFunctions.openConfig("gen6_offsets.ini"), "UTF-8");
-            while (sc.hasNextLine()) {
-                String q = sc.nextLine().trim();
+            for (String line : FileFunctions.readConfigLines("gen6_offsets.ini")) {
+                String q = line.trim();
                 if (q.contains("//")) {
                     q = q.substring(0, q.indexOf("//")).trim();
                 }
@@ -207,7 +216,6 @@ public class Gen6RomHandler extends Abstract3DSRomHandler {
                     }
                 }
             }
-            sc.close();
         } catch (FileNotFoundException e) {
             System.err.println("File not found!");
         }
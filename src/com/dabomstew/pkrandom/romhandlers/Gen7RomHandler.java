@@ -25,6 +25,8 @@ package com.dabomstew.pkrandom.romhandlers;
 
 import com.dabomstew.pkrandom.FileFunctions;
 import com.dabomstew.pkrandom.MiscTweak;
+import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.RomFileHeader;
 import com.dabomstew.pkrandom.RomFunctions;
 import com.dabomstew.pkrandom.Settings;
 import com.dabomstew.pkrandom.constants.*;
@@ -46,20 +48,30 @@ public class Gen7RomHandler extends Abstract3DSRomHandler {
     public static class Factory extends RomHandler.Factory {
 
         @Override
-        public Gen7RomHandler create(Random random, PrintStream logStream) {
+        public Gen7RomHandler create(RandomSource random, PrintStream logStream) {
             return new Gen7RomHandler(random, logStream);
         }
 
         public boolean isLoadable(String filename) {
-            return detect3DSRomInner(getProductCodeFromFile(filename), getTitleIdFromFile(filename));
+            return isLoadable(new RomFileHeader(filename));
+        }
+
+        @Override
+        public boolean isLoadable(RomFileHeader header) {
+            return detect3DSRomInner(getProductCode(header), getTitleId(header));
+        }
+
+        @Override
+        public RomFileHeader.Format getFormat() {
+            return RomFileHeader.Format.CTR;
         }
     }
 
-    public Gen7RomHandler(Random random) {
+    public Gen7RomHandler(RandomSource random) {
         super(random, null);
     }
 
-    public Gen7RomHandler(Random random, PrintStream logStream) {
+    public Gen7RomHandler(RandomSource random, PrintStream logStream) {
         super(random, logStream);
     }
 
@@ -119,9 +131,8 @@ public class Gen7RomHandler extends Abstract3DSRomHandler {
         roms = new ArrayList<>();
         RomEntry current = null;
         try {
-            Scanner sc = new Scanner(FileFunctions.openConfig("gen7_offsets.ini"), "UTF-8");
-            while (sc.hasNextLine()) {
-                String q = sc.nextLine().trim();
+            for (String line : FileFunctions.readConfigLines("gen7_offsets.ini")) {
+                String q = line.trim();
                 if (q.contains("//")) {
                     q = q.substring(0, q.indexOf("//")).trim();
                 }
@@ -208,7 +219,6 @@ public class Gen7RomHandler extends Abstract3DSRomHandler {
                     }
                 }
             }
-            sc.close();
         } catch (FileNotFoundException e) {
             System.err.println("File not found!");
         }
@@ -26,26 +26,67 @@ package com.dabomstew.pkrandom.romhandlers;
 /*----------------------------------------------------------------------------*/
 
 import java.awt.image.BufferedImage;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
 import java.util.Set;
 
 import com.dabomstew.pkrandom.MiscTweak;
+import com.dabomstew.pkrandom.RandomSource;
+import com.dabomstew.pkrandom.RomFileHeader;
 import com.dabomstew.pkrandom.Settings;
 import com.dabomstew.pkrandom.pokemon.*;
 
 public interface RomHandler {
 
     abstract class Factory {
-        public RomHandler create(Random random) {
+        public RomHandler create(RandomSource random) {
             return create(random, null);
         }
 
-        public abstract RomHandler create(Random random, PrintStream log);
+        public abstract RomHandler create(RandomSource random, PrintStream log);
 
         public abstract boolean isLoadable(String filename);
+
+        // Factories that know the format of their ROMs check them against a header that was
+        // already read, instead of reading the file again
+        public boolean isLoadable(RomFileHeader header) {
+            return isLoadable(header.getFilename());
+        }
+
+        public RomFileHeader.Format getFormat() {
+            return RomFileHeader.Format.UNKNOWN;
+        }
+
+        /**
+         * Reads the start of the file once and first asks the factories for its format whether
+         * they can load it. Files of an unknown format, and files that none of those factories
+         * take, are offered to every other factory too, so a wrong guess at the format never
+         * makes a loadable ROM unsupported.
+         *
+         * @return The first factory that can load the file, or null if none can
+         */
+        public static Factory findFactory(String filename, Factory... factories) {
+            RomFileHeader header = new RomFileHeader(filename);
+            RomFileHeader.Format format = header.getFormat();
+            for (Factory factory : factories) {
+                if (isCandidate(factory, format) && factory.isLoadable(header)) {
+                    return factory;
+                }
+            }
+            for (Factory factory : factories) {
+                if (!isCandidate(factory, format) && factory.isLoadable(header)) {
+                    return factory;
+                }
+            }
+            return null;
+        }
+
+        private static boolean isCandidate(Factory factory, RomFileHeader.Format format) {
+            return format == RomFileHeader.Format.UNKNOWN || factory.getFormat() == format
+                    || factory.getFormat() == RomFileHeader.Format.UNKNOWN;
+        }
     }
 
     // =======================
@@ -54,10 +95,27 @@ public interface RomHandler {
 
     boolean loadRom(String filename);
 
+    // Loads the same ROM as base, an already loaded handler of the same type. The original ROM
+    // data of base is shared instead of being read from disk again, and is never modified.
+    boolean loadRomFrom(RomHandler base);
+
+    // For dry runs, which randomize the ROM without ever saving it. Handlers that would spill
+    // extracted files to temp files past their memory budget keep them all in memory instead.
+    // Must be set before the ROM is loaded.
+    void setDryRun(boolean dryRun);
+
     boolean saveRomFile(String filename, long seed);
 
     boolean saveRomDirectory(String filename);
 
+    // Writes the same ROM as saveRomFile, strictly in order, so out does not need to be a file
+    boolean saveRomToStream(OutputStream out, long seed);
+
+    // Saves only the differences from the loaded ROM, as a file with the patch extension
+    boolean saveRomPatch(String filename);
+
+    String getPatchExtension();
+
     String loadedFilename();
 
     // =============================================================
@@ -78,6 +136,8 @@ public interface RomHandler {
 
     void setLog(PrintStream logStream);
 
+    RandomSource getRandomSource();
+
     void printRomDiagnostics(PrintStream logStream);
 
     boolean isRomValid();
@@ -7,6 +7,7 @@ import java.nio.ByteOrder;
 import java.util.Arrays;
 
 import com.dabomstew.pkrandom.FileFunctions;
+import com.dabomstew.pkrandom.RomIOEvent;
 
 /*----------------------------------------------------------------------------*/
 /*--  BLZCoder.java - Bottom LZ coding for Nintendo GBA/DS/3DS              --*/
@@ -157,6 +158,13 @@ public class BLZCoder {
     }
 
     public byte[] BLZ_DecodePub(byte[] data, String reference) {
+        RomIOEvent event = RomIOEvent.start("Decompress", reference);
+        byte[] decoded = BLZ_DecodeMemory(data, reference);
+        event.finish(decoded == null ? 0 : decoded.length, data.length);
+        return decoded;
+    }
+
+    private byte[] BLZ_DecodeMemory(byte[] data, String reference) {
         if (reference.equals("GARC")) {
             return LZSS_Decode(data);
         } else {
@@ -409,6 +417,13 @@ public class BLZCoder {
     }
 
     public byte[] BLZ_EncodePub(byte[] data, boolean arm9, boolean best, String reference) {
+        RomIOEvent event = RomIOEvent.start("Compress", reference);
+        byte[] encoded = BLZ_EncodeMemory(data, arm9, best, reference);
+        event.finish(data.length, encoded == null ? 0 : encoded.length);
+        return encoded;
+    }
+
+    private byte[] BLZ_EncodeMemory(byte[] data, boolean arm9, boolean best, String reference) {
         int mode = best ? BLZ_BEST : BLZ_NORMAL;
         this.arm9 = arm9;
         if (reference.equals("GARC")) {
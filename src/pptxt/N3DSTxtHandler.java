@@ -44,7 +44,7 @@ public class N3DSTxtHandler {
     private static boolean setEmptyText = false;
     private static int romType;
 
-    public static List<String> readTexts(byte[] ds, boolean remapChars, int romType) {
+    public static synchronized List<String> readTexts(byte[] ds, boolean remapChars, int romType) {
         N3DSTxtHandler.remapChars = remapChars;
         N3DSTxtHandler.romType = romType;
         List<String> strings = new ArrayList<>();
@@ -75,7 +75,7 @@ public class N3DSTxtHandler {
         return strings;
     }
 
-    public static byte[] saveEntry(byte[] originalData, List<String> values, int romType) throws IOException {
+    public static synchronized byte[] saveEntry(byte[] originalData, List<String> values, int romType) throws IOException {
         int key = KEY_BASE;
 
         ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
@@ -115,6 +115,8 @@ public class PPTxtHandler {
         return uncomp;
     }
 
+    // Shared between readTexts and saveEntry, so both are synchronized to keep
+    // concurrent randomizations from clobbering each other's keys.
     private static List<Integer> lastKeys;
     private static List<Integer> lastUnknowns;
 
@@ -127,7 +129,7 @@ public class PPTxtHandler {
      * @return The list of strings
      */
 
-    public static List<String> readTexts(byte[] ds) {
+    public static synchronized List<String> readTexts(byte[] ds) {
         int pos = 0;
         int i = 0;
         lastKeys = new ArrayList<>();
@@ -248,7 +250,7 @@ public class PPTxtHandler {
      *            The new data.
      * @return The file to write back to the NARC.
      */
-    public static byte[] saveEntry(byte[] originalData, List<String> text) {
+    public static synchronized byte[] saveEntry(byte[] originalData, List<String> text) {
 
         // Parse strings against the reverse table
         for (int sn = 0; sn < text.size(); sn++) {